@@ -0,0 +1,95 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+import il.ac.tau.cs.experiment.ArithCompile.FloatFunction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * The ways to evaluate a formula - from parsing the source every time to running jitted code.
+ * The formula is the Taylor series of e^x with 'terms' terms - so the size of the input grows with terms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class ArithBenchmark {
+    @Param({"2", "6", "20"})
+    public int terms;
+
+    private String source;
+    private Map<String, Float> params;
+    private float[] args;
+    private ExecutableCode compiled;
+    private ExecutableCode optimized;
+    private FloatFunction jitted;
+
+    /**
+     * 1 + x + (x*x/(1*2)) + (x*x*x/(1*2*3)) ...
+     */
+    static String taylor(int terms) {
+        var source = new StringBuilder("1");
+        for (int n = 1; n < terms; n++) {
+            source.append(" + (").append("x*".repeat(n - 1)).append("x/(")
+                    .append(String.join("*", IntStream.rangeClosed(1, n)
+                            .mapToObj(Integer::toString).toList()))
+                    .append("))");
+        }
+        return source.toString();
+    }
+
+    @Setup
+    public void setup() {
+        source = taylor(terms);
+        params = Map.of("x", 0.5F);
+        compiled = ArithCompile.compile(source);
+        optimized = ArithOptimizer.optimize(compiled);
+        args = new ArithCompile.ParamBinder(compiled).bind(params);
+        jitted = ArithCompile.jit(optimized);
+    }
+
+    @Benchmark
+    public float interpret() {
+        return ArithInterpreter.interpret(source, params);
+    }
+
+    @Benchmark
+    public float interpretCached() {
+        return ArithCompile.interpret(source, params);
+    }
+
+    @Benchmark
+    public ExecutableCode compile() {
+        return ArithCompile.compile(source);
+    }
+
+    @Benchmark
+    public ExecutableCode optimize() {
+        return ArithOptimizer.optimize(compiled);
+    }
+
+    @Benchmark
+    public float runBoxed() {
+        return ArithCompile.run(compiled, params);
+    }
+
+    @Benchmark
+    public float run() {
+        return ArithCompile.run(compiled, args);
+    }
+
+    @Benchmark
+    public float runOptimized() {
+        return ArithCompile.run(optimized, args);
+    }
+
+    @Benchmark
+    public float runJit() {
+        return jitted.apply(args);
+    }
+}
@@ -0,0 +1,66 @@
+package il.ac.tau.cs.experiment;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * High fan-in merges - the same number of elements split into k sorted runs.
+ * Merger and MergerByChatGPT2 scan all k heads per element, so expect them to take seconds per merge at large k.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class FanInMergeBenchmark {
+    @Param({"2", "8", "64", "512", "4096"})
+    public int k;
+
+    @Param({"262144"})
+    public int total;
+
+    private List<List<Integer>> lists;
+
+    @Setup
+    public void setup() {
+        var rand = new Random(17);
+        lists = new ArrayList<>();
+        for (int i = 0; i < k; i++) {
+            lists.add(rand.ints(total / k).sorted().boxed().toList());
+        }
+    }
+
+    private List<Iterator<Integer>> iterators() {
+        var iterators = new ArrayList<Iterator<Integer>>(k);
+        for (var list : lists) {
+            iterators.add(list.iterator());
+        }
+        return iterators;
+    }
+
+    @Benchmark
+    public long merger() {
+        return MergeBenchmark.drain(new MultiMerge.Merger<>(iterators()));
+    }
+
+    @Benchmark
+    public long mergerChatGPT1() {
+        return MergeBenchmark.drain(new MultiMerge.MergerChatGPT1<>(iterators()));
+    }
+
+    @Benchmark
+    public long mergerByChatGPT2() {
+        return MergeBenchmark.drain(new MultiMerge.MergerByChatGPT2<>(iterators()));
+    }
+
+    @Benchmark
+    public long loserTree() {
+        return MergeBenchmark.drain(MultiMerge.LoserTreeMerger.of(iterators()));
+    }
+}
@@ -0,0 +1,39 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.MatrixInit.MemEfficientMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filling a size x size matrix row by row (YX - sequential memory) and column by column (XY - strided)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class MatrixInitBenchmark {
+    @Param({"200", "800", "2000"})
+    public int size;
+
+    private MemEfficientMatrix matrix;
+
+    @Setup
+    public void setup() {
+        matrix = new MemEfficientMatrix(size, size);
+    }
+
+    @Benchmark
+    public MemEfficientMatrix fillYX() {
+        MatrixInit.multTableYX(matrix);
+        return matrix;
+    }
+
+    @Benchmark
+    public MemEfficientMatrix fillXY() {
+        MatrixInit.multTableXY(matrix);
+        return matrix;
+    }
+}
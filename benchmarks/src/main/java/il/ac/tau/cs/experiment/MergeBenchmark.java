@@ -0,0 +1,95 @@
+package il.ac.tau.cs.experiment;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging k sorted lists of n Integers each - the whole merge is one operation
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class MergeBenchmark {
+    @Param({"2", "10", "100"})
+    public int k;
+
+    @Param({"1000", "10000"})
+    public int n;
+
+    private List<List<Integer>> lists;
+    private int[][] runs;  // the same values as lists
+
+    @Setup
+    public void setup() {
+        var rand = new Random(17);
+        lists = new ArrayList<>();
+        for (int i = 0; i < k; i++) {
+            lists.add(rand.ints(n).sorted().boxed().toList());
+        }
+        runs = lists.stream().map(list -> list.stream().mapToInt(Integer::intValue).toArray()).toArray(int[][]::new);
+    }
+
+    private List<Iterator<Integer>> iterators() {
+        var iterators = new ArrayList<Iterator<Integer>>(k);
+        for (var list : lists) {
+            iterators.add(list.iterator());
+        }
+        return iterators;
+    }
+
+    static long drain(Iterator<Integer> merger) {
+        long sum = 0;
+        while (merger.hasNext()) {
+            sum += merger.next();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long merger() {
+        return drain(new MultiMerge.Merger<>(iterators()));
+    }
+
+    @Benchmark
+    public long mergerChatGPT1() {
+        return drain(new MultiMerge.MergerChatGPT1<>(iterators()));
+    }
+
+    @Benchmark
+    public long mergerByChatGPT2() {
+        return drain(new MultiMerge.MergerByChatGPT2<>(iterators()));
+    }
+
+    @Benchmark
+    public long loserTree() {
+        return drain(MultiMerge.LoserTreeMerger.of(iterators()));
+    }
+
+    @Benchmark
+    public long intMerger() {
+        var merger = new MultiMerge.IntMerger(MultiMerge.intIterators(runs));
+        long sum = 0;
+        while (merger.hasNext()) {
+            sum += merger.nextInt();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int[] mergeIntRuns() {
+        return MultiMerge.merge(runs);
+    }
+
+    @Benchmark
+    public int[] parallelMergeIntRuns() {
+        return MultiMerge.parallelMerge(runs);
+    }
+}
@@ -1,8 +1,6 @@
 package il.ac.tau.cs.experiment;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static java.lang.Float.NaN;
 
@@ -35,11 +33,27 @@ public class ArithCompile {
      * PARAM(i) = 8.0,i  # push the value of param whose name is the i-th in the list paramIndex
      * ZERO=9.0  # push 0.0
      * ONE=10.0  # push 1.0
+     * STORE(i)=11.0,i  # copy the top of the stack to temp slot i (the value stays on the stack)
+     * LOAD(i)=12.0,i  # push the value of temp slot i
+     * STORE/LOAD let the optimizer calculate a common sub-expression once and reuse it (see ArithOptimizer)
      *
      * @param opCodes a list of opcodes and constant to executre
      * @param paramIndex a list of parmeter referenced by the source code
+     * @param maxStackDepth the deepest the stack gets while running opCodes - calculated when the code is built
+     * @param numTemps how many temp slots STORE/LOAD use
      */
-    public record ExecutableCode(float[] opCodes, String[] paramIndex) {}
+    public record ExecutableCode(float[] opCodes, String[] paramIndex, int maxStackDepth, int numTemps) {
+        public ExecutableCode(float[] opCodes, String[] paramIndex) {
+            this(opCodes, paramIndex, calcMaxStackDepth(opCodes), calcNumTemps(opCodes));
+        }
+
+        /**
+         * Size of the float[] the runners need - the stack and above it the temp slots
+         */
+        public int frameSize() {
+            return maxStackDepth + numTemps;
+        }
+    }
 
     static final int NOOP = 0;
     static final int PUSH = 1;
@@ -52,9 +66,229 @@ public class ArithCompile {
     static final int PARAM = 8;
     static final int ZERO = 9;
     static final int ONE = 10;
+    static final int STORE = 11;
+    static final int LOAD = 12;
+
+    // How many floats each opcode pops from the stack and pushes back (indexed by opcode)
+    static final int[] STACK_POP = {0, 0, 2, 2, 2, 2, 2, 1, 0, 0, 0, 1, 0};
+    static final int[] STACK_PUSH = {0, 1, 1, 1, 1, 1, 2, 2, 1, 1, 1, 1, 1};
+
+    static boolean hasOperand(int op) {
+        return op == PUSH || op == PARAM || op == STORE || op == LOAD;
+    }
+
+    /**
+     * Simulates the stack height along the code - so the runner can preallocate its stack.
+     * Also verifies the code never pops an empty stack and leaves exactly one result.
+     */
+    static int calcMaxStackDepth(float[] opCodes) {
+        int depth = 0;
+        int maxDepth = 0;
+        for (int pc = 0; pc < opCodes.length; pc++) {
+            int op = (int) opCodes[pc];
+            if (op < 0 || op >= STACK_POP.length) {
+                throw new IllegalStateException("Unexpected value: " + op);
+            }
+            if (depth < STACK_POP[op]) {
+                throw new RuntimeException(String.format(
+                        "INTERNAL ERROR - stack underflow at opcode %d", pc));
+            }
+            depth += STACK_PUSH[op] - STACK_POP[op];
+            maxDepth = Math.max(maxDepth, depth);
+            if (hasOperand(op)) {
+                pc++;  // skip the number / param index
+            }
+        }
+        if (depth != 1) {
+            throw new RuntimeException("INTERNAL ERROR - code should leave exactly one value on the stack");
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Counts the temp slots - and verifies no slot is LOADed before it is STOREd
+     */
+    static int calcNumTemps(float[] opCodes) {
+        var stored = new BitSet();
+        for (int pc = 0; pc < opCodes.length; pc++) {
+            int op = (int) opCodes[pc];
+            if (op == STORE) {
+                stored.set((int) opCodes[pc + 1]);
+            } else if (op == LOAD && !stored.get((int) opCodes[pc + 1])) {
+                throw new RuntimeException(String.format(
+                        "INTERNAL ERROR - LOAD of temp %d before it was stored", (int) opCodes[pc + 1]));
+            }
+            if (hasOperand(op)) {
+                pc++;
+            }
+        }
+        return stored.length();
+    }
+
+    // One reusable stack per thread for runNoAlloc - grows to the deepest code seen
+    private static final ThreadLocal<float[]> threadStack = ThreadLocal.withInitial(() -> new float[16]);
+
+    static float[] threadStack(int size) {
+        var stack = threadStack.get();
+        if (stack.length < size) {
+            stack = new float[Math.max(size, stack.length * 2)];
+            threadStack.set(stack);
+        }
+        return stack;
+    }
+
+    // and one reusable args array per thread - for the Map based runs
+    private static final ThreadLocal<float[]> threadArgs = ThreadLocal.withInitial(() -> new float[16]);
+
+    /**
+     * Same as run() - but the stack is a float[] of at least exec.frameSize().
+     * No boxing and no allocation per evaluation - the params are bound to slots (see ParamBinder)
+     * and the code runs in the same loop as run(exec, args, stack).
+     */
+    static public float run(ExecutableCode exec, Map<String, Float> params, float[] stack) {
+        var args = threadArgs.get();
+        if (args.length < exec.paramIndex.length) {
+            args = new float[Math.max(exec.paramIndex.length, args.length * 2)];
+            threadArgs.set(args);
+        }
+        return run(exec, ParamBinder.bind(exec.paramIndex, params, args), stack);
+    }
+
+    static public float runNoAlloc(ExecutableCode exec, Map<String, Float> params) {
+        return run(exec, params, threadStack(exec.frameSize()));
+    }
+
+    /**
+     * Resolves the parameter names of an ExecutableCode to their slots once.
+     * bind() fills a float[] where args[i] is the value of paramIndex[i] - ready for run(exec, args).
+     * A missing parameter fails here - not later in the middle of evaluation.
+     */
+    public static class ParamBinder {
+        private final String[] paramIndex;
+        private final float[] args;
+
+        public ParamBinder(ExecutableCode exec) {
+            this(exec.paramIndex);
+        }
+
+        public ParamBinder(String[] paramIndex) {
+            this.paramIndex = paramIndex;
+            this.args = new float[paramIndex.length];
+        }
+
+        public int slotOf(String paramName) {
+            for (int i = 0; i < paramIndex.length; i++) {
+                if (paramIndex[i].equals(paramName)) {
+                    return i;
+                }
+            }
+            throw new RuntimeException("Unknown parameter " + paramName);
+        }
+
+        public ParamBinder set(String paramName, float value) {
+            args[slotOf(paramName)] = value;
+            return this;
+        }
+
+        /**
+         * @return the binder's own args array - reused between calls, so copy it if you need to keep it.
+         */
+        public float[] bind(Map<String, Float> params) {
+            return bind(paramIndex, params, args);
+        }
+
+        /**
+         * @param args at least paramIndex.length - filled and returned
+         */
+        static float[] bind(String[] paramIndex, Map<String, Float> params, float[] args) {
+            for (int i = 0; i < paramIndex.length; i++) {
+                var value = params.get(paramIndex[i]);
+                if (value == null) {
+                    throw new RuntimeException("Missing parameter " + paramIndex[i]);
+                }
+                args[i] = value;
+            }
+            return args;
+        }
+
+        public float[] args() {
+            return args;
+        }
+    }
+
+    /**
+     * Runs with parameters already bound to slots (see ParamBinder) - PARAM(i) just loads args[i].
+     */
+    static public float run(ExecutableCode exec, float[] args, float[] stack) {
+        var code = exec.opCodes;
+        int sp = 0;
+        int temps = exec.maxStackDepth;
+        float a;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch ((int) code[pc]) {
+                case NOOP:
+                    break;
+                case PUSH:
+                    stack[sp++] = code[++pc];
+                    break;
+                case PARAM:
+                    stack[sp++] = args[(int) code[++pc]];
+                    break;
+                case PLUS:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case MINUS:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case SWAP:
+                    a = stack[sp - 1];
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = a;
+                    break;
+                case DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case ZERO:
+                    stack[sp++] = 0.0F;
+                    break;
+                case ONE:
+                    stack[sp++] = 1.0F;
+                    break;
+                case STORE:
+                    stack[temps + (int) code[++pc]] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[temps + (int) code[++pc]];
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected value: " + (int) code[pc]);
+            }
+        }
+        return stack[0];
+    }
+
+    static public float run(ExecutableCode exec, float[] args) {
+        if (args.length < exec.paramIndex.length) {
+            throw new RuntimeException(String.format(
+                    "Expecting %d parameters, got %d", exec.paramIndex.length, args.length));
+        }
+        return run(exec, args, threadStack(exec.frameSize()));
+    }
 
     static public float run(ExecutableCode exec, Map<String, Float> params) {
       var stack = new Stack<Float>();
+      var temps = new float[exec.numTemps];
       var prevOp = 0.0F;
       for (var op: exec.opCodes) {
           float a, b;
@@ -69,6 +303,14 @@ public class ArithCompile {
                   stack.push(paramVal);
                   prevOp = 0.0F;
                   continue;
+              case STORE:  // copy top of stack to temp
+                  temps[(int)op] = stack.peek();
+                  prevOp = 0.0F;
+                  continue;
+              case LOAD:  // push temp
+                  stack.push(temps[(int)op]);
+                  prevOp = 0.0F;
+                  continue;
           }
           switch ((int) op) {
               case NOOP:
@@ -112,6 +354,8 @@ public class ArithCompile {
                   break;
               case PUSH:
               case PARAM:
+              case STORE:
+              case LOAD:
                   prevOp = op;
                   break;
               default:
@@ -126,145 +370,77 @@ public class ArithCompile {
       return result;
     }
 
-    static class CompileLocation {
-        protected String sourceCode;
-        protected ArrayList<Float> opCodes = new ArrayList<>();
-        protected ArrayList<String> paramIndex;  // reference to the global param indices
-        protected int parseStart;
-        protected int parseEnd;
-        protected String lastMatch;
-
-        public CompileLocation(String sourceCode) {
-            this.sourceCode = sourceCode.replaceAll("\\s+",""); // no white-space
-            this.paramIndex = new ArrayList<>();
-            parseStart = 0;
-            parseEnd = -1;
-        }
-
-        protected boolean advanceIfMatch(String regex, boolean mustMatch, boolean advance) {
-            Matcher matcher = Pattern.compile(regex).matcher(sourceCode.substring(parseStart));
-            if (matcher.find()) {
-                if (advance) {
-                    lastMatch = matcher.group();
-                    // we used sourceCode.substring for the match but we want
-                    // parseEnd relative to the full sourceCode so we add parseStart
-                    parseEnd = matcher.end() + parseStart;
-                }
-                return true;
-            } else if (mustMatch) {
-                throw new RuntimeException(String.format(
-                        "Missing #%s# in location %d in code %s", regex, parseStart, sourceCode));
+    /**
+     * Receives the parsed source code in postfix order (see ArithParser) - which is exactly
+     * the order of the opcodes - so each callback just appends its opcode.
+     */
+    static class CodeBuilder implements ArithParser.PostfixSink {
+        protected float[] opCodes = new float[16];
+        protected int size = 0;
+        protected ArrayList<String> paramIndex = new ArrayList<>();
+        protected HashMap<String, Integer> paramSlots = new HashMap<>();
+
+        protected void append(float value) {
+            if (size == opCodes.length) {
+                opCodes = Arrays.copyOf(opCodes, size * 2);
             }
-            return false;
-        }
-
-        protected boolean advanceIfMatch(String regex) {
-            return advanceIfMatch(regex, false, true);
-        }
-
-        protected void mustMatch(String regex) {
-            advanceIfMatch(regex, true, true);
-        }
-
-        protected boolean matchAhead(String regex) {
-            return advanceIfMatch(regex, false, false);
-        }
-
-        protected void next() {
-            parseStart = parseEnd;
+            opCodes[size++] = value;
         }
 
-        protected CompileLocation innerParser() {
-            CompileLocation inner = new CompileLocation(sourceCode);
-            inner.paramIndex = paramIndex;  // keep a reference to the same param array
-            inner.parseStart = parseEnd;
-            inner.parseEnd = -1;
-            return inner;
-        }
-
-        public static float calcOperator(String operator) {
+        public static float calcOperator(char operator) {
             return switch (operator) {
-                case "+" -> 2.0F;
-                case "-" -> 3.0F;
-                case "*" -> 4.0F;
-                case "/" -> 5.0F;
+                case '+' -> 2.0F;
+                case '-' -> 3.0F;
+                case '*' -> 4.0F;
+                case '/' -> 5.0F;
                 default -> throw new RuntimeException("Unknown operator " + operator);
             };
         }
 
         protected int getOrAppendParamIndex(String paramName) {
-            int index = paramIndex.indexOf(paramName);
-            if (index >= 0) {
+            var index = paramSlots.get(paramName);
+            if (index != null) {
                 return index;
             }
             paramIndex.add(paramName);
+            paramSlots.put(paramName, paramIndex.size() - 1);
             return paramIndex.size() - 1;
         }
 
-        public void compileRecursive() {
-            var hasValue = false;
-            float leftVal = 0.0F;
-            if (advanceIfMatch("^\\d+")) {
-                leftVal =  Float.parseFloat(lastMatch);
-                opCodes.add(1.0F);
-                opCodes.add(leftVal);
-                hasValue = true;
-                next();
-            }
-            if (!hasValue && advanceIfMatch("^[a-zA-Z_]\\w*")) {
-                int index = getOrAppendParamIndex(lastMatch);
-                opCodes.add((float)PARAM);
-                opCodes.add((float)index);
-                hasValue = true;
-                next();
-            }
-            if (!hasValue && advanceIfMatch("^\\(")) {
-                var inner = innerParser();
-                inner.compileRecursive();
-                opCodes.addAll(inner.opCodes);
-                parseEnd = inner.parseEnd;
-                next();
-                mustMatch("^\\)");
-                next();
-            }
-            // check for end of text or end of inner expression
-            if (matchAhead("^(\\)|$)")) {
-                return;
-            }
-            // Try to see if there is an operator
-            if (advanceIfMatch("^[\\+\\-\\*/]")) {
-                var operator = lastMatch;
-                var inner = innerParser();
-                inner.compileRecursive();
-                opCodes.addAll(inner.opCodes);
-                parseEnd = inner.parseEnd;
-                next();
-                opCodes.add(calcOperator(operator));
-                return;
-            }
+        @Override
+        public void number(float value) {
+            append((float) PUSH);
+            append(value);
+        }
 
-            throw new RuntimeException(String.format(
-                    "Missing ')' of EOF in location %d in code %s", parseStart, sourceCode));
+        @Override
+        public void param(String name) {
+            append((float) PARAM);
+            append((float) getOrAppendParamIndex(name));
         }
-    }
 
-    public static ExecutableCode compile(String source_code) {
-        var location = new CompileLocation(source_code);
-        location.compileRecursive();
-        float[] opCodes = new float[location.opCodes.size()];
-        for(int i = 0; i < opCodes.length; i++) {
-            opCodes[i] = location.opCodes.get(i);
+        @Override
+        public void operator(char operator) {
+            append(calcOperator(operator));
         }
-        String[] paramIndex = new String[location.paramIndex.size()];
-        for(int i = 0; i < paramIndex.length; i++) {
-            paramIndex[i] = location.paramIndex.get(i);
+
+        public ExecutableCode build() {
+            return new ExecutableCode(Arrays.copyOf(opCodes, size), paramIndex.toArray(new String[0]));
         }
-        return new ExecutableCode(opCodes, paramIndex);
     }
 
+    public static ExecutableCode compile(String source_code) {
+        var builder = new CodeBuilder();
+        ArithParser.parse(source_code, builder);
+        return builder.build();
+    }
+
+    // Formulas we already compiled - interpret() checks here before parsing anything
+    static final FormulaCache formulaCache = new FormulaCache(1024);
+
     public static float interpret(String source_code, Map<String, Float> params) {
-        var exec = compile(source_code);
-        return run(exec, params);
+        var exec = formulaCache.get(source_code);
+        return runNoAlloc(exec, params);
     }
 
     public static void check(Float val, float expectedVal) {
@@ -276,9 +452,13 @@ public class ArithCompile {
     }
 
     public static void checkExcept(String source_code, Map<String, Float> params) {
+        checkExcept(ArithCompile::interpret, source_code, params);
+    }
+
+    public static void checkExcept(Evaluator evaluator, String source_code, Map<String, Float> params) {
         boolean finished = false;
         try {
-            interpret(source_code, params);
+            evaluator.eval(source_code, params);
             finished = true;
         } catch (RuntimeException e) {
             return;   // OK - we wanted this exception
@@ -288,22 +468,87 @@ public class ArithCompile {
         }
     }
 
-    public static void testInterpreter() {
-        check(interpret("123", Map.of()), 123.0F);
-        check(interpret("X", Map.of("X", 17.0F)), 17.0F);
-        check(interpret("(123)", Map.of()), 123.0F);
-        check(interpret("((123))", Map.of()), 123.0F);
-        check(interpret("3+4", Map.of()), 7.0F);
+    /**
+     * Any of the ways we have to evaluate source code - so they can all go through the same tests
+     */
+    public interface Evaluator {
+        float eval(String source_code, Map<String, Float> params);
+    }
+
+    public static void testInterpreter(Evaluator interpreter) {
+        check(interpreter.eval("123", Map.of()), 123.0F);
+        check(interpreter.eval("X", Map.of("X", 17.0F)), 17.0F);
+        check(interpreter.eval("(123)", Map.of()), 123.0F);
+        check(interpreter.eval("((123))", Map.of()), 123.0F);
+        check(interpreter.eval("3+4", Map.of()), 7.0F);
         // Next two is an example of bad operator precedence in our language
-        check(interpret("3*4+5", Map.of()), 27.0F);
-        check(interpret("2*3+4+5", Map.of()), 24.0F);
-        check(interpret("(2*3+4)+5", Map.of()), 19.0F);
-        check(interpret("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))",
+        check(interpreter.eval("3*4+5", Map.of()), 27.0F);
+        check(interpreter.eval("2*3+4+5", Map.of()), 24.0F);
+        check(interpreter.eval("(2*3+4)+5", Map.of()), 19.0F);
+        check(interpreter.eval("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))",
                 Map.of("x", 1.0F)), 2.716667F);
+        check(interpreter.eval(" 12 +\t( x_1 ) ", Map.of("x_1", 5.0F)), 17.0F);
 
         // Some error cases
-        checkExcept("123X", Map.of("X", 17.0F));
+        checkExcept(interpreter, "123X", Map.of("X", 17.0F));
+        checkExcept(interpreter, "x+y", Map.of("x", 1.0F));
+        checkExcept(interpreter, "3)", Map.of());
+        checkExcept(interpreter, "()", Map.of());
+        checkExcept(interpreter, "3+", Map.of());
+    }
 
+    public static void testInterpreter() {
+        testInterpreter(ArithCompile::interpret);
+        testInterpreter(ArithCompile::interpretJit);
+
+        // The float[] stack runner should agree with the Stack<Float> one
+        var taylor = compile("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))");
+        check(runNoAlloc(taylor, Map.of("x", 1.0F)), 2.716667F);
+        check(runNoAlloc(optimize(taylor), Map.of("x", 1.0F)), 2.716667F);
+        check(runNoAlloc(compile("(2*3+4)+5"), Map.of()), 19.0F);
+        var square = compile("(x*x) + (2*x*y) + (y*y)");
+        var binder = new ParamBinder(square);
+        check(run(square, binder.bind(Map.of("x", 3.0F, "y", 4.0F))), 49.0F);
+        check(run(square, binder.set("y", 1.0F).args()), 16.0F);
+        check(jit(square).apply(binder.args()), 16.0F);
+    }
+
+    /**
+     * A generated formula of the kind that used to overflow the native stack:
+     * terms x+1+x+1... (right associative - so as deep as it is long) inside 'depth' parentheses
+     */
+    static String largeSource(int terms, int depth) {
+        var source = new StringBuilder(terms * 2 + depth * 2);
+        source.append("(".repeat(depth));
+        for (int i = 0; i < terms; i++) {
+            source.append(i > 0 ? "+" : "").append(i % 2 == 0 ? "x" : "1");
+        }
+        source.append(")".repeat(depth));
+        return source.toString();
+    }
+
+    public static void testLargeSource() {
+        var source = largeSource(1_000_000, 1_000_000);
+        check(interpret(source, Map.of("x", 1.0F)), 1_000_000.0F);
+        check(ArithInterpreter.interpret(source, Map.of("x", 1.0F)), 1_000_000.0F);
+        checkExcept(ArithCompile::interpret, source + ")", Map.of("x", 1.0F));
+        checkExcept(ArithCompile::interpret, "(" + source, Map.of("x", 1.0F));
+    }
+
+    /**
+     * Parsing and compiling should be linear - twice the source, twice the time
+     */
+    public static void profileLargeSource() {
+        for (int round = 0; round < 2; round++) {  // the first round also warms up the JIT
+            for (int terms = 250_000; terms <= 1_000_000; terms *= 2) {
+                var source = largeSource(terms, terms / 10);
+                long start = System.nanoTime();
+                var exec = ArithOptimizer.optimize(compile(source));
+                System.out.printf("%d KB source: compile and optimize msec = %d (%d instructions)%n",
+                        source.length() / 1024, (System.nanoTime() - start) / 1_000_000,
+                        ArithOptimizer.countInstructions(exec));
+            }
+        }
     }
 
     public static void profileInterpreter() {
@@ -376,6 +621,26 @@ public class ArithCompile {
         return new ExecutableCode(newOpcodes, originalCode.paramIndex);
     }
 
+    /**
+     * A formula compiled to JVM bytecode - args[i] is the value of paramIndex[i] (see ParamBinder)
+     */
+    public interface FloatFunction {
+        float apply(float[] args);
+    }
+
+    /**
+     * Compiles the code one step further - to a hidden JVM class (see ArithJit).
+     * Defining a class is expensive - do it once per formula and keep the FloatFunction.
+     */
+    public static FloatFunction jit(ExecutableCode exec) {
+        return ArithJit.define(exec);
+    }
+
+    public static float interpretJit(String source_code, Map<String, Float> params) {
+        var exec = ArithOptimizer.optimize(compile(source_code));
+        return jit(exec).apply(new ParamBinder(exec).bind(params));
+    }
+
     public static void profileCompiler() {
         var exec = compile("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))");
         ArithInterpreter.timeIt(() -> run(exec, Map.of("x", 1.0F)));
@@ -388,10 +653,44 @@ public class ArithCompile {
         ArithInterpreter.timeIt(() -> run(exec, Map.of("x", 1.0F)));
     }
 
+    public static void profileCompilerNoAlloc() {
+        var exec = compile("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))");
+        var params = Map.of("x", 1.0F);  // created once - so the loop itself allocates nothing
+        ArithInterpreter.timeIt(() -> runNoAlloc(exec, params));
+    }
+
+    public static void profileCompilerOptimizerNoAlloc() {
+        var exec = optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        var params = Map.of("x", 1.0F);
+        ArithInterpreter.timeIt(() -> runNoAlloc(exec, params));
+    }
+
+    public static void profileCompilerBound() {
+        var exec = optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        var args = new ParamBinder(exec).set("x", 1.0F).args();
+        ArithInterpreter.timeIt(() -> run(exec, args));
+    }
+
+    public static void profileJit() {
+        var exec = optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        var function = jit(exec);
+        var args = new ParamBinder(exec).set("x", 1.0F).args();
+        ArithInterpreter.timeIt(() -> function.apply(args));
+    }
+
     public static void main(String[] args) {
         testInterpreter();
-        profileInterpreter();  // on my laptop 32433
+        testLargeSource();
+        profileInterpreter();  // on my laptop 32433 (before interpret() used formulaCache)
         profileCompiler();  // on my laptop 766
         profileCompilerOptimizer(); // on my laptop 484
+        profileCompilerNoAlloc();
+        profileCompilerOptimizerNoAlloc();
+        profileCompilerBound();
+        profileJit();
+        profileLargeSource();
     }
 }
\ No newline at end of file
@@ -0,0 +1,272 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+import il.ac.tau.cs.experiment.ArithIntCode.IntCode;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * Superinstructions - one opcode that does the work of a short sequence we see all the time.
+ * PARAM(x),DUP,MUL (x squared) becomes PARAM_SQUARE(x), PUSH(c),DIV becomes PUSH_DIV(c) etc.
+ * Every opcode the runner handles costs a dispatch (a hard to predict jump through the switch)
+ * so fewer, bigger opcodes mean fewer dispatches per evaluation.
+ * Fusion is a peephole pass over the int code (see ArithIntCode) - run it after optimizing.
+ * The fused code has its own runner - the other runners don't know the fused opcodes.
+ */
+public class ArithFusion {
+    // Fused opcodes - numbered after the plain ones (which are kept as they are)
+    static final int SQUARE = 32;           // DUP,MUL
+    static final int PARAM_SQUARE = 33;     // PARAM(i),DUP,MUL
+    static final int PARAM_PARAM_MUL = 34;  // PARAM(i),PARAM(j),MUL  - 2 operands: i,j
+    static final int PARAM_MUL = 35;        // PARAM(i),MUL
+    static final int PARAM_PLUS = 36;       // PARAM(i),PLUS
+    static final int PUSH_PLUS = 37;        // PUSH(c),PLUS  - c is an index in the constant pool like PUSH
+    static final int PUSH_MINUS = 38;       // PUSH(c),MINUS
+    static final int PUSH_MUL = 39;         // PUSH(c),MUL
+    static final int PUSH_DIV = 40;         // PUSH(c),DIV
+    static final int LOAD_MUL = 41;         // LOAD(t),MUL
+    static final int LOAD_SQUARE = 42;      // LOAD(t),DUP,MUL
+
+    /**
+     * Same layout as IntCode - but code may contain the fused opcodes
+     */
+    public record FusedCode(int[] code, float[] constants, String[] paramIndex, int maxStackDepth, int numTemps) {
+        public int frameSize() {
+            return maxStackDepth + numTemps;
+        }
+    }
+
+    /**
+     * @return the index right after the instructions if the code at pc is exactly ops, or -1
+     */
+    static int match(int[] code, int pc, int... ops) {
+        for (var op : ops) {
+            if (pc >= code.length || code[pc] != op) {
+                return -1;
+            }
+            pc += hasOperand(op) ? 2 : 1;
+        }
+        return pc;
+    }
+
+    public static FusedCode fuse(IntCode ic) {
+        var code = ic.code();
+        var fused = new int[code.length];
+        int size = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            int end;
+            // longer patterns first
+            if ((end = match(code, pc, PARAM, DUP, MUL)) > 0) {
+                fused[size++] = PARAM_SQUARE;
+                fused[size++] = code[pc + 1];
+            } else if ((end = match(code, pc, PARAM, PARAM, MUL)) > 0) {
+                fused[size++] = PARAM_PARAM_MUL;
+                fused[size++] = code[pc + 1];
+                fused[size++] = code[pc + 3];
+            } else if ((end = match(code, pc, LOAD, DUP, MUL)) > 0) {
+                fused[size++] = LOAD_SQUARE;
+                fused[size++] = code[pc + 1];
+            } else if ((end = match(code, pc, PARAM, MUL)) > 0) {
+                fused[size++] = PARAM_MUL;
+                fused[size++] = code[pc + 1];
+            } else if ((end = match(code, pc, PARAM, PLUS)) > 0) {
+                fused[size++] = PARAM_PLUS;
+                fused[size++] = code[pc + 1];
+            } else if ((end = match(code, pc, LOAD, MUL)) > 0) {
+                fused[size++] = LOAD_MUL;
+                fused[size++] = code[pc + 1];
+            } else if (op == PUSH && pc + 2 < code.length && code[pc + 2] >= PLUS && code[pc + 2] <= DIV) {
+                end = pc + 3;
+                fused[size++] = switch (code[pc + 2]) {
+                    case PLUS -> PUSH_PLUS;
+                    case MINUS -> PUSH_MINUS;
+                    case MUL -> PUSH_MUL;
+                    default -> PUSH_DIV;
+                };
+                fused[size++] = code[pc + 1];
+            } else if ((end = match(code, pc, DUP, MUL)) > 0) {
+                fused[size++] = SQUARE;
+            } else {
+                end = pc + (hasOperand(op) ? 2 : 1);
+                System.arraycopy(code, pc, fused, size, end - pc);
+                size += end - pc;
+            }
+            pc = end;
+        }
+        return new FusedCode(Arrays.copyOf(fused, size), ic.constants(), ic.paramIndex(),
+                ic.maxStackDepth(), ic.numTemps());
+    }
+
+    public static FusedCode fuse(ExecutableCode exec) {
+        return fuse(ArithIntCode.encode(exec));
+    }
+
+    /**
+     * The number of opcodes the runner dispatches on
+     */
+    public static int countInstructions(FusedCode fc) {
+        int count = 0;
+        for (int pc = 0; pc < fc.code.length; pc++) {
+            int op = fc.code[pc];
+            if (op == PARAM_PARAM_MUL) {
+                pc += 2;
+            } else if (op >= PARAM_SQUARE || hasOperand(op)) {
+                pc++;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param args args[i] is the value of fc.paramIndex[i] (see ParamBinder)
+     * @param stack at least fc.frameSize() floats
+     */
+    public static float run(FusedCode fc, float[] args, float[] stack) {
+        var code = fc.code;
+        var constants = fc.constants;
+        int sp = 0;
+        int temps = fc.maxStackDepth;
+        float a;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                // the fused opcodes first - they are the common ones
+                case PARAM_SQUARE:
+                    a = args[code[++pc]];
+                    stack[sp++] = a * a;
+                    break;
+                case PARAM_PARAM_MUL:
+                    a = args[code[++pc]];
+                    stack[sp++] = a * args[code[++pc]];
+                    break;
+                case PARAM_MUL:
+                    stack[sp - 1] *= args[code[++pc]];
+                    break;
+                case PARAM_PLUS:
+                    stack[sp - 1] += args[code[++pc]];
+                    break;
+                case PUSH_PLUS:
+                    stack[sp - 1] += constants[code[++pc]];
+                    break;
+                case PUSH_MINUS:
+                    stack[sp - 1] -= constants[code[++pc]];
+                    break;
+                case PUSH_MUL:
+                    stack[sp - 1] *= constants[code[++pc]];
+                    break;
+                case PUSH_DIV:
+                    stack[sp - 1] /= constants[code[++pc]];
+                    break;
+                case LOAD_MUL:
+                    stack[sp - 1] *= stack[temps + code[++pc]];
+                    break;
+                case LOAD_SQUARE:
+                    a = stack[temps + code[++pc]];
+                    stack[sp++] = a * a;
+                    break;
+                case SQUARE:
+                    stack[sp - 1] *= stack[sp - 1];
+                    break;
+                case NOOP:
+                    break;
+                case PUSH:
+                    stack[sp++] = constants[code[++pc]];
+                    break;
+                case PARAM:
+                    stack[sp++] = args[code[++pc]];
+                    break;
+                case PLUS:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case MINUS:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case SWAP:
+                    a = stack[sp - 1];
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = a;
+                    break;
+                case DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case ZERO:
+                    stack[sp++] = 0.0F;
+                    break;
+                case ONE:
+                    stack[sp++] = 1.0F;
+                    break;
+                case STORE:
+                    stack[temps + code[++pc]] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[temps + code[++pc]];
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected value: " + code[pc]);
+            }
+        }
+        return stack[0];
+    }
+
+    public static float run(FusedCode fc, float[] args) {
+        if (args.length < fc.paramIndex.length) {
+            throw new RuntimeException(String.format(
+                    "Expecting %d parameters, got %d", fc.paramIndex.length, args.length));
+        }
+        return run(fc, args, threadStack(fc.frameSize()));
+    }
+
+    public static float interpret(String sourceCode, Map<String, Float> params) {
+        var fc = fuse(ArithOptimizer.optimize(compile(sourceCode)));
+        return run(fc, new ParamBinder(fc.paramIndex).bind(params));
+    }
+
+    public static void testFusion() {
+        testInterpreter(ArithFusion::interpret);
+        // unoptimized code has other patterns - PARAM,PARAM,MUL and PUSH,PUSH,...
+        testInterpreter((source, params) -> {
+            var fc = fuse(compile(source));
+            return run(fc, new ParamBinder(fc.paramIndex).bind(params));
+        });
+        var fc = fuse(compile("(x*y) + (x*x) - (y*3) - (2/x)"));
+        var args = new ParamBinder(fc.paramIndex).bind(Map.of("x", 2.0F, "y", 5.0F));
+        check(run(fc, args), 10.0F + (4.0F - (15.0F - 1.0F)));
+    }
+
+    public static void profileFusion() {
+        var exec = ArithOptimizer.optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        var ic = ArithIntCode.encode(exec);
+        var fc = fuse(ic);
+        System.out.printf("instructions: optimized %d, fused %d%n",
+                ArithOptimizer.countInstructions(exec), countInstructions(fc));
+        var args = new float[]{1.0F};
+        for (int round = 0; round < 2; round++) {  // the first round also warms up the JIT
+            System.out.print("optimized: ");
+            ArithInterpreter.timeIt(() -> ArithIntCode.run(ic, args));
+            System.out.print("fused: ");
+            ArithInterpreter.timeIt(() -> run(fc, args));
+        }
+    }
+
+    public static void main(String[] args) {
+        testFusion();
+        profileFusion();
+    }
+}
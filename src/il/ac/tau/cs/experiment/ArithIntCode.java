@@ -0,0 +1,390 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * A compact form of ExecutableCode - opcodes and operands are ints (no float-to-int cast per opcode)
+ * and the numbers PUSH uses are kept in a separate constant pool: PUSH(c) is PUSH,index-of-c.
+ * Compiled formulas can be saved to a file and loaded back by mapping the file to memory -
+ * a service can start with all its formulas ready to run without parsing any source code.
+ *
+ * File format (all numbers big-endian):
+ *    int MAGIC, short VERSION, short 0 (reserved), int number-of-formulas
+ *    then for each formula:
+ *       string source, int number-of-params, string per param,
+ *       int number-of-constants, float per constant, int code-length, int per code entry,
+ *       int maxStackDepth, int numTemps
+ *    a string is an int length followed by that many bytes of UTF-8
+ */
+public class ArithIntCode {
+    public record IntCode(int[] code, float[] constants, String[] paramIndex, int maxStackDepth, int numTemps) {
+        public int frameSize() {
+            return maxStackDepth + numTemps;
+        }
+    }
+
+    static final int MAGIC = 0x41525448;  // "ARTH"
+    static final short VERSION = 1;
+
+    public static IntCode encode(ExecutableCode exec) {
+        var opCodes = exec.opCodes();
+        var code = new int[opCodes.length];
+        var constants = new ArrayList<Float>();
+        var constantIndex = new HashMap<Float, Integer>();  // constant --> its index in constants
+        for (int pc = 0; pc < opCodes.length; pc++) {
+            int op = (int) opCodes[pc];
+            code[pc] = op;
+            if (op == PUSH) {
+                float value = opCodes[++pc];
+                var index = constantIndex.get(value);
+                if (index == null) {
+                    index = constants.size();
+                    constants.add(value);
+                    constantIndex.put(value, index);
+                }
+                code[pc] = index;
+            } else if (hasOperand(op)) {
+                pc++;
+                code[pc] = (int) opCodes[pc];
+            }
+        }
+        var constantValues = new float[constants.size()];
+        for (int i = 0; i < constantValues.length; i++) {
+            constantValues[i] = constants.get(i);
+        }
+        return new IntCode(code, constantValues, exec.paramIndex(), exec.maxStackDepth(), exec.numTemps());
+    }
+
+    public static ExecutableCode decode(IntCode ic) {
+        var opCodes = new float[ic.code.length];
+        for (int pc = 0; pc < ic.code.length; pc++) {
+            int op = ic.code[pc];
+            opCodes[pc] = op;
+            if (op == PUSH) {
+                pc++;
+                opCodes[pc] = ic.constants[ic.code[pc]];
+            } else if (hasOperand(op)) {
+                pc++;
+                opCodes[pc] = ic.code[pc];
+            }
+        }
+        return new ExecutableCode(opCodes, ic.paramIndex);
+    }
+
+    /**
+     * Checks code read from a file - every operand in range, and the stack depth and temps the file claims
+     */
+    static void verify(IntCode ic) {
+        int depth = 0;
+        int maxDepth = 0;
+        var stored = new BitSet();  // temp slots stored so far - as in calcNumTemps
+        for (int pc = 0; pc < ic.code.length; pc++) {
+            int op = ic.code[pc];
+            if (op < 0 || op >= STACK_POP.length || depth < STACK_POP[op]) {
+                throw new RuntimeException(String.format("Bad opcode %d at %d", op, pc));
+            }
+            depth += STACK_PUSH[op] - STACK_POP[op];
+            maxDepth = Math.max(maxDepth, depth);
+            if (hasOperand(op)) {
+                if (++pc >= ic.code.length) {
+                    throw new RuntimeException("Missing operand at the end of the code");
+                }
+                int operand = ic.code[pc];
+                int limit = switch (op) {
+                    case PUSH -> ic.constants.length;
+                    case PARAM -> ic.paramIndex.length;
+                    default -> ic.numTemps;
+                };
+                if (operand < 0 || operand >= limit || op == LOAD && !stored.get(operand)) {
+                    throw new RuntimeException(String.format("Bad operand %d at %d", operand, pc));
+                }
+                if (op == STORE) {
+                    stored.set(operand);
+                }
+            }
+        }
+        if (depth != 1 || maxDepth != ic.maxStackDepth) {
+            throw new RuntimeException("Bad stack depth in code");
+        }
+        if (ic.numTemps != stored.length()) {  // run() allocates a frame this size
+            throw new RuntimeException(String.format("Bad number of temps %d in code", ic.numTemps));
+        }
+    }
+
+    /**
+     * @param args args[i] is the value of ic.paramIndex[i] (see ParamBinder)
+     * @param stack at least ic.frameSize() floats
+     */
+    public static float run(IntCode ic, float[] args, float[] stack) {
+        var code = ic.code;
+        var constants = ic.constants;
+        int sp = 0;
+        int temps = ic.maxStackDepth;
+        float a;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case NOOP:
+                    break;
+                case PUSH:
+                    stack[sp++] = constants[code[++pc]];
+                    break;
+                case PARAM:
+                    stack[sp++] = args[code[++pc]];
+                    break;
+                case PLUS:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case MINUS:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] /= stack[sp];
+                    break;
+                case SWAP:
+                    a = stack[sp - 1];
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = a;
+                    break;
+                case DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case ZERO:
+                    stack[sp++] = 0.0F;
+                    break;
+                case ONE:
+                    stack[sp++] = 1.0F;
+                    break;
+                case STORE:
+                    stack[temps + code[++pc]] = stack[sp - 1];
+                    break;
+                case LOAD:
+                    stack[sp++] = stack[temps + code[++pc]];
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected value: " + code[pc]);
+            }
+        }
+        return stack[0];
+    }
+
+    public static float run(IntCode ic, float[] args) {
+        if (args.length < ic.paramIndex.length) {
+            throw new RuntimeException(String.format(
+                    "Expecting %d parameters, got %d", ic.paramIndex.length, args.length));
+        }
+        return run(ic, args, threadStack(ic.frameSize()));
+    }
+
+    static int stringSize(String value) {
+        return Integer.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads the length of an array - checked against the bytes left, before anything that size is allocated
+     * @param elementSize the fewest bytes each element takes in the file
+     */
+    static int getLength(ByteBuffer buffer, int elementSize) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / elementSize) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+
+    static String getString(ByteBuffer buffer) {
+        var bytes = new byte[getLength(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Saves formulas to a file
+     * @param formulas source code --> its compiled code
+     */
+    public static void save(Path path, Map<String, IntCode> formulas) throws IOException {
+        int size = Integer.BYTES + 2 * Short.BYTES + Integer.BYTES;
+        for (var entry : formulas.entrySet()) {
+            var ic = entry.getValue();
+            size += stringSize(entry.getKey()) + Integer.BYTES;
+            for (var param : ic.paramIndex) {
+                size += stringSize(param);
+            }
+            size += Integer.BYTES + ic.constants.length * Float.BYTES;
+            size += Integer.BYTES + ic.code.length * Integer.BYTES;
+            size += 2 * Integer.BYTES;
+        }
+        var buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(formulas.size());
+        for (var entry : formulas.entrySet()) {
+            var ic = entry.getValue();
+            putString(buffer, entry.getKey());
+            buffer.putInt(ic.paramIndex.length);
+            for (var param : ic.paramIndex) {
+                putString(buffer, param);
+            }
+            buffer.putInt(ic.constants.length);
+            buffer.asFloatBuffer().put(ic.constants);
+            buffer.position(buffer.position() + ic.constants.length * Float.BYTES);
+            buffer.putInt(ic.code.length);
+            buffer.asIntBuffer().put(ic.code);
+            buffer.position(buffer.position() + ic.code.length * Integer.BYTES);
+            buffer.putInt(ic.maxStackDepth);
+            buffer.putInt(ic.numTemps);
+        }
+        buffer.flip();
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Loads a file written by save() - the file is memory mapped, not read through a stream
+     * @return source code --> compiled code, in the order they were saved
+     */
+    public static Map<String, IntCode> load(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+                throw new RuntimeException("Not a formula file: " + path);
+            }
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new RuntimeException(String.format("Unsupported formula file version %d in %s", version, path));
+            }
+            buffer.getShort();  // reserved
+            int count = buffer.getInt();
+            var formulas = new LinkedHashMap<String, IntCode>();
+            for (int i = 0; i < count; i++) {
+                var source = getString(buffer);
+                var paramIndex = new String[getLength(buffer, Integer.BYTES)];
+                for (int p = 0; p < paramIndex.length; p++) {
+                    paramIndex[p] = getString(buffer);
+                }
+                var constants = new float[getLength(buffer, Float.BYTES)];
+                buffer.asFloatBuffer().get(constants);
+                buffer.position(buffer.position() + constants.length * Float.BYTES);
+                var code = new int[getLength(buffer, Integer.BYTES)];
+                buffer.asIntBuffer().get(code);
+                buffer.position(buffer.position() + code.length * Integer.BYTES);
+                var ic = new IntCode(code, constants, paramIndex, buffer.getInt(), buffer.getInt());
+                verify(ic);
+                formulas.put(source, ic);
+            }
+            return formulas;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new RuntimeException("Truncated or corrupt formula file: " + path, e);
+        }
+    }
+
+    static void checkCorrupt(Path path, String expectedError) throws IOException {
+        try {
+            load(path);
+        } catch (RuntimeException e) {
+            if (e.getMessage().startsWith(expectedError)) {
+                return;
+            }
+            throw e;
+        }
+        throw new RuntimeException("ERROR - corrupt formula file was loaded");
+    }
+
+    public static void testIntCode() throws IOException {
+        var sources = List.of(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))",
+                "(x*x) + (2*x*y) + (y*y)",
+                "(2*3+4)+5");
+        var formulas = new LinkedHashMap<String, IntCode>();
+        for (var source : sources) {
+            formulas.put(source, encode(ArithOptimizer.optimize(compile(source))));
+        }
+        var path = Files.createTempFile("formulas", ".arth");
+        try {
+            save(path, formulas);
+            var loaded = load(path);
+            if (!loaded.keySet().equals(formulas.keySet())) {
+                throw new RuntimeException("ERROR - loaded formulas differ: " + loaded.keySet());
+            }
+            var params = Map.of("x", 3.0F, "y", 4.0F);
+            for (var source : sources) {
+                var ic = loaded.get(source);
+                var args = new ParamBinder(ic.paramIndex).bind(params);
+                float expected = ArithInterpreter.interpret(source, params);
+                check(run(ic, args), expected);
+                check(ArithCompile.run(decode(ic), args), expected);
+            }
+
+            // corrupt files fail to load - they don't make run() or load() allocate whatever they claim
+            var ic = encode(compile("x+1"));
+            save(path, Map.of("x+1", new IntCode(ic.code, ic.constants, ic.paramIndex, ic.maxStackDepth, 1 << 30)));
+            checkCorrupt(path, "Bad number of temps");
+            // temp 0 is loaded but only temp 1 was ever stored
+            var unstored = new IntCode(new int[]{PARAM, 0, STORE, 1, LOAD, 0, PLUS}, ic.constants, ic.paramIndex, 2, 2);
+            save(path, Map.of("x+1", unstored));
+            checkCorrupt(path, "Bad operand 0 at 5");
+            save(path, Map.of("x+1", ic));
+            try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                // header, source "x+1", one param "x" - then the number of constants
+                int constantsOffset = 12 + Integer.BYTES + 3 + Integer.BYTES + Integer.BYTES + 1;
+                channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, Integer.MAX_VALUE), constantsOffset);
+            }
+            checkCorrupt(path, "Truncated or corrupt");
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    public static void profileIntCode() {
+        var exec = ArithOptimizer.optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        var ic = encode(exec);
+        var args = new float[]{1.0F};
+        for (int round = 0; round < 2; round++) {
+            System.out.print("float opcodes: ");
+            ArithInterpreter.timeIt(() -> ArithCompile.run(exec, args));
+            System.out.print("int opcodes: ");
+            ArithInterpreter.timeIt(() -> run(ic, args));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        testIntCode();
+        profileIntCode();
+    }
+}
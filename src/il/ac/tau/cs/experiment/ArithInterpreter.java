@@ -1,8 +1,8 @@
 package il.ac.tau.cs.experiment;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class ArithInterpreter {
     /*
@@ -18,119 +18,117 @@ public class ArithInterpreter {
      * The result of the calculation is a float.
      */
     
-    static class InterpreterLocation {
-        protected String sourceCode;
+    /**
+     * Calculates the value while parsing - the parser reports numbers, parameters and operators
+     * in postfix order (see ArithParser) so the values wait on a small stack for their operator.
+     */
+    static class InterpreterStack implements ArithParser.PostfixSink {
         protected Map<String, Float> params;
-        protected int parseStart;
-        protected int parseEnd;
-        protected float interpretedValue;
-        protected String lastMatch;
+        protected float[] stack = new float[16];
+        protected int size = 0;
 
-        public InterpreterLocation(String sourceCode, Map<String, Float> params) {
-            this.sourceCode = sourceCode.replaceAll("\\s+",""); // no white-space
+        public InterpreterStack(Map<String, Float> params) {
             this.params = params;
-            parseStart = 0;
-            parseEnd = -1;
         }
 
-        protected boolean advanceIfMatch(String regex, boolean mustMatch, boolean advance) {
-            Matcher matcher = Pattern.compile(regex).matcher(sourceCode.substring(parseStart));
-            if (matcher.find()) {
-                if (advance) {
-                    lastMatch = matcher.group();
-                    // we used sourceCode.substring for the match but we want
-                    // parseEnd relative to the full sourceCode so we add parseStart
-                    parseEnd = matcher.end() + parseStart;
-                }
-                return true;
-            } else if (mustMatch) {
-                throw new RuntimeException(String.format(
-                        "Missing #%s# in location %d in code %s", regex, parseStart, sourceCode));
+        protected void push(float value) {
+            if (size == stack.length) {
+                stack = Arrays.copyOf(stack, size * 2);
             }
-            return false;
+            stack[size++] = value;
         }
 
-        protected boolean advanceIfMatch(String regex) {
-            return advanceIfMatch(regex, false, true);
+        public static float calcOperator(float leftVal,
+                                         char operator,
+                                         float rightVal) {
+            switch (operator) {
+                case '+': return leftVal + rightVal;
+                case '-': return leftVal - rightVal;
+                case '*': return leftVal * rightVal;
+                case '/': return leftVal / rightVal;
+                default: throw new RuntimeException("Unknown operator " + operator);
+            }
         }
 
-        protected void mustMatch(String regex) {
-            advanceIfMatch(regex, true, true);
+        @Override
+        public void number(float value) {
+            push(value);
         }
 
-        protected boolean matchAhead(String regex) {
-            return advanceIfMatch(regex, false, false);
+        @Override
+        public void param(String name) {
+            var paramVal = params.get(name);
+            if (paramVal == null) {
+                throw new RuntimeException("Missing parameter " + name);
+            }
+            push(paramVal);
         }
 
-        protected void next() {
-            parseStart = parseEnd;
+        @Override
+        public void operator(char operator) {
+            var rightVal = stack[--size];
+            var leftVal = stack[--size];
+            push(calcOperator(leftVal, operator, rightVal));
         }
+    }
 
-        protected InterpreterLocation innerParser() {
-            InterpreterLocation inner = new InterpreterLocation(sourceCode, params);
-            inner.parseStart = parseEnd;
-            inner.parseEnd = -1;
-            return inner;
-        }
-        public static float calcOperator(float leftVal,
-                                         String operator,
-                                         float rightVal) {
-            switch (operator) {
-                case "+": return leftVal + rightVal;
-                case "-": return leftVal - rightVal;
-                case "*": return leftVal * rightVal;
-                case "/": return leftVal / rightVal;
-                default: throw new RuntimeException("Unknown operator " + operator);
-            }
+    public static float interpret(String source_code, Map<String, Float> params) {
+        var interpreter = new InterpreterStack(params);
+        ArithParser.parse(source_code, interpreter);
+        return interpreter.stack[0];
+    }
+
+    /**
+     * A formula parsed once - evaluate it again and again with different parameters.
+     * It is a tree of lambdas (closures) - one per number, parameter and operator of the source code.
+     * The tree is immutable, so one Expression can be evaluated by many threads at once.
+     */
+    public interface Expression {
+        float eval(Map<String, Float> params);
+    }
+
+    /**
+     * Builds the Expression - the parser reports in postfix order, so the operands
+     * of an operator are the last two expressions built
+     */
+    static class ClosureBuilder implements ArithParser.PostfixSink {
+        protected ArrayDeque<Expression> stack = new ArrayDeque<>();
+
+        @Override
+        public void number(float value) {
+            stack.push(params -> value);
         }
 
-        public float interpretRecursive() {
-            var hasValue = false;
-            float leftVal = 0.0F;
-            if (advanceIfMatch("^\\d+")) {
-                leftVal =  Float.parseFloat(lastMatch);
-                hasValue = true;
-                next();
-            }
-            if (!hasValue && advanceIfMatch("^[a-zA-Z_]\\w*")) {
-                leftVal = params.get(lastMatch);
-                hasValue = true;
-                next();
-            }
-            if (!hasValue && advanceIfMatch("^\\(")) {
-                var inner = innerParser();
-                inner.interpretRecursive();
-                leftVal = inner.interpretedValue;
-                parseEnd = inner.parseEnd;
-                next();
-                mustMatch("^\\)");
-                next();
-            }
-            // check for end of text or end of inner expression
-            if (matchAhead("^(\\)|$)")) {
-                interpretedValue = leftVal;
-                return leftVal;
-            }
-            // Try to see if there is an operator
-            if (advanceIfMatch("^[\\+\\-\\*/]")) {
-                var operator = lastMatch;
-                var inner = innerParser();
-                inner.interpretRecursive();
-                var rightVal = inner.interpretedValue;
-                parseEnd = inner.parseEnd;
-                next();
-                interpretedValue = calcOperator(leftVal, operator, rightVal);
-                return interpretedValue;
-            }
+        @Override
+        public void param(String name) {
+            stack.push(params -> {
+                var paramVal = params.get(name);
+                if (paramVal == null) {
+                    throw new RuntimeException("Missing parameter " + name);
+                }
+                return paramVal;
+            });
+        }
 
-            throw new RuntimeException(String.format(
-                    "Missing ')' or EOF in location %d in code %s", parseStart, sourceCode));
+        @Override
+        public void operator(char operator) {
+            var right = stack.pop();
+            var left = stack.pop();
+            // choose the lambda once here - not on every evaluation
+            stack.push(switch (operator) {
+                case '+' -> params -> left.eval(params) + right.eval(params);
+                case '-' -> params -> left.eval(params) - right.eval(params);
+                case '*' -> params -> left.eval(params) * right.eval(params);
+                case '/' -> params -> left.eval(params) / right.eval(params);
+                default -> throw new RuntimeException("Unknown operator " + operator);
+            });
         }
     }
 
-    public static float interpret(String source_code, Map<String, Float> params) {
-        var location = new InterpreterLocation(source_code, params);
-        return location.interpretRecursive();
+    public static Expression parse(String source_code) {
+        var builder = new ClosureBuilder();
+        ArithParser.parse(source_code, builder);
+        return builder.stack.pop();
     }
 
     public static void check(Float val, float expectedVal) {
@@ -154,6 +152,18 @@ public class ArithInterpreter {
         }
     }
 
+    public static void checkParseExcept(String source_code) {
+        boolean finished = false;
+        try {
+            parse(source_code);
+            finished = true;
+        } catch (RuntimeException e) {
+            return;   // OK - we wanted this exception
+        }
+        if (finished) {
+            throw new RuntimeException("ERROR - parsing this should have failed: " + source_code);
+        }
+    }
 
     public static void testInterpreter() {
         check(interpret("123", Map.of()), 123.0F);
@@ -167,11 +177,24 @@ public class ArithInterpreter {
         check(interpret("(2*3+4)+5", Map.of()), 19.0F);
         check(interpret("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))",
                 Map.of("x", 1.0F)), 2.716667F);
+        check(interpret(" 12 +\t( x_1 ) ", Map.of("x_1", 5.0F)), 17.0F);
         check(interpret("(x*x) + (2*x*y) + (y*y)",
                 Map.of("x", 3.0F, "y", 4.0F)), 49.0F);
 
         // Some error cases
         checkExcept("123X", Map.of("X", 17.0F));
+        checkExcept("x+y", Map.of("x", 1.0F));
+
+        // The same cases - parsed once
+        ArithCompile.testInterpreter((source, params) -> parse(source).eval(params));
+        var square = parse("(x*x) + (2*x*y) + (y*y)");
+        check(square.eval(Map.of("x", 3.0F, "y", 4.0F)), 49.0F);
+        check(square.eval(Map.of("x", 1.0F, "y", 1.0F)), 4.0F);
+        // bad source fails in parse() - before there is an Expression to evaluate
+        checkParseExcept("3)");
+        checkParseExcept("()");
+        checkParseExcept("3+");
+        checkParseExcept("123X");
     }
 
     public static void profileInterpreter() {
@@ -179,7 +202,14 @@ public class ArithInterpreter {
                 Map.of("x", 1.0F)));  // 29736 on my laptop
     }
 
+    public static void profileParsed() {
+        var expression = parse("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))");
+        var params = Map.of("x", 1.0F);
+        timeIt(() -> expression.eval(params));
+    }
+
     public static void timeIt(Runnable r) {
+        // A quick look only - no warmup and no statistics. For numbers to compare see the JMH benchmarks (README)
         // Function to measure execution time of the above solutions
         // to use in the above main call like this (for example)
         //    String output = Main.timeIt(Main::capitalize_by_word, input);
@@ -193,5 +223,6 @@ public class ArithInterpreter {
     public static void main(String[] args) {
         testInterpreter();
         profileInterpreter();  // On my laptop: 18248 msec
+        profileParsed();
     }
 }
\ No newline at end of file
@@ -0,0 +1,263 @@
+package il.ac.tau.cs.experiment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * Translates an ExecutableCode to a real JVM class - each opcode becomes one or two bytecodes:
+ * PUSH(c) -> ldc c, PARAM(i) -> args[i], PLUS -> fadd, SWAP -> swap, DUP -> dup ...
+ * The JVM operand stack plays the role of our float stack, so there is no dispatch loop at all
+ * and HotSpot can inline the whole formula into its caller.
+ * The class is defined as a hidden class - it has no name other code can see
+ * and is unloaded once the FloatFunction is no longer referenced.
+ */
+class ArithJit {
+    static final String CLASS_NAME = "il/ac/tau/cs/experiment/ArithJit$Formula";
+    static final String INTERFACE_NAME = "il/ac/tau/cs/experiment/ArithCompile$FloatFunction";
+
+    // Constant pool layout - the fixed entries first, float constants are appended after them
+    static final int CP_THIS_NAME = 1;
+    static final int CP_THIS_CLASS = 2;
+    static final int CP_OBJECT_NAME = 3;
+    static final int CP_OBJECT_CLASS = 4;
+    static final int CP_INTERFACE_NAME = 5;
+    static final int CP_INTERFACE_CLASS = 6;
+    static final int CP_INIT_NAME = 7;
+    static final int CP_INIT_DESC = 8;
+    static final int CP_INIT_NAME_AND_TYPE = 9;
+    static final int CP_OBJECT_INIT = 10;
+    static final int CP_APPLY_NAME = 11;
+    static final int CP_APPLY_DESC = 12;
+    static final int CP_CODE = 13;
+    static final int CP_FIXED_COUNT = 14;  // constant_pool_count of the fixed part (entries are 1-based)
+
+    // The few JVM opcodes we need
+    static final int ICONST_0 = 0x03;
+    static final int FCONST_0 = 0x0b;
+    static final int FCONST_1 = 0x0c;
+    static final int FCONST_2 = 0x0d;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int FLOAD = 0x17;
+    static final int FLOAD_0 = 0x22;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int FALOAD = 0x30;
+    static final int FSTORE = 0x38;
+    static final int FSTORE_0 = 0x43;
+    static final int DUP_JVM = 0x59;
+    static final int SWAP_JVM = 0x5f;
+    static final int FADD = 0x62;
+    static final int FSUB = 0x66;
+    static final int FMUL = 0x6a;
+    static final int FDIV = 0x6e;
+    static final int FRETURN = 0xae;
+    static final int RETURN = 0xb1;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int WIDE = 0xc4;
+
+    // apply(float[] args) has 'this' and args in locals 0,1 - temp slot i is local FIRST_TEMP + i
+    static final int FIRST_TEMP = 2;
+
+    static class FloatConstants {
+        ArrayList<Float> values = new ArrayList<>();
+
+        int indexOf(float value) {
+            for (int i = 0; i < values.size(); i++) {
+                if (Float.floatToRawIntBits(values.get(i)) == Float.floatToRawIntBits(value)) {
+                    return CP_FIXED_COUNT + i;
+                }
+            }
+            values.add(value);
+            return CP_FIXED_COUNT + values.size() - 1;
+        }
+    }
+
+    static void emitPushFloat(ByteArrayOutputStream code, FloatConstants constants, float value) {
+        int bits = Float.floatToRawIntBits(value);
+        if (bits == Float.floatToRawIntBits(0.0F)) {
+            code.write(FCONST_0);
+        } else if (bits == Float.floatToRawIntBits(1.0F)) {
+            code.write(FCONST_1);
+        } else if (bits == Float.floatToRawIntBits(2.0F)) {
+            code.write(FCONST_2);
+        } else {
+            int index = constants.indexOf(value);
+            if (index < 256) {
+                code.write(LDC);
+                code.write(index);
+            } else {
+                code.write(LDC_W);
+                code.write(index >> 8);
+                code.write(index);
+            }
+        }
+    }
+
+    static void emitPushInt(ByteArrayOutputStream code, int value) {
+        if (value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value < 128) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else {
+            code.write(SIPUSH);
+            code.write(value >> 8);
+            code.write(value);
+        }
+    }
+
+    /**
+     * fload/fstore of a local - with the short forms for locals 0-3 and 'wide' past 255
+     */
+    static void emitLocal(ByteArrayOutputStream code, int shortOpcode, int opcode, int local) {
+        if (local <= 3) {
+            code.write(shortOpcode + local);
+        } else if (local < 256) {
+            code.write(opcode);
+            code.write(local);
+        } else {
+            code.write(WIDE);
+            code.write(opcode);
+            code.write(local >> 8);
+            code.write(local);
+        }
+    }
+
+    static byte[] applyBytecode(ExecutableCode exec, FloatConstants constants) {
+        var code = new ByteArrayOutputStream();
+        var opCodes = exec.opCodes();
+        for (int pc = 0; pc < opCodes.length; pc++) {
+            switch ((int) opCodes[pc]) {
+                case NOOP -> {}
+                case PUSH -> emitPushFloat(code, constants, opCodes[++pc]);
+                case PARAM -> {
+                    code.write(ALOAD_1);  // args
+                    emitPushInt(code, (int) opCodes[++pc]);
+                    code.write(FALOAD);
+                }
+                case PLUS -> code.write(FADD);
+                case MINUS -> code.write(FSUB);
+                case MUL -> code.write(FMUL);
+                case DIV -> code.write(FDIV);
+                case SWAP -> code.write(SWAP_JVM);
+                case DUP -> code.write(DUP_JVM);
+                case ZERO -> code.write(FCONST_0);
+                case ONE -> code.write(FCONST_1);
+                case STORE -> {
+                    code.write(DUP_JVM);  // STORE keeps the value on the stack - fstore pops it
+                    emitLocal(code, FSTORE_0, FSTORE, FIRST_TEMP + (int) opCodes[++pc]);
+                }
+                case LOAD -> emitLocal(code, FLOAD_0, FLOAD, FIRST_TEMP + (int) opCodes[++pc]);
+                default -> throw new IllegalStateException("Unexpected value: " + (int) opCodes[pc]);
+            }
+        }
+        code.write(FRETURN);
+        return code.toByteArray();
+    }
+
+    static void writeUtf8(DataOutputStream out, String value) throws IOException {
+        out.writeByte(1);  // CONSTANT_Utf8
+        out.writeUTF(value);
+    }
+
+    static void writeCodeAttribute(DataOutputStream out, int maxStack, int maxLocals, byte[] code)
+            throws IOException {
+        out.writeShort(CP_CODE);
+        out.writeInt(12 + code.length);  // attribute length: everything below
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);  // exception table
+        out.writeShort(0);  // attributes
+    }
+
+    static byte[] classBytes(ExecutableCode exec) {
+        var constants = new FloatConstants();
+        var applyCode = applyBytecode(exec, constants);
+        // PARAM pushes args and the index before faload - so we need 2 more than our own stack
+        int maxStack = exec.maxStackDepth() + 2;
+        int maxLocals = FIRST_TEMP + exec.numTemps();
+        if (applyCode.length > 65535 || maxStack > 65535 || maxLocals > 65535
+                || CP_FIXED_COUNT + constants.values.size() > 65535) {
+            throw new RuntimeException("Code is too large to compile to a single JVM method");
+        }
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);   // minor version
+            out.writeShort(61);  // major version - Java 17 class file (no StackMapTable needed - no branches)
+            out.writeShort(CP_FIXED_COUNT + constants.values.size());
+            writeUtf8(out, CLASS_NAME);
+            out.writeByte(7);  // CONSTANT_Class
+            out.writeShort(CP_THIS_NAME);
+            writeUtf8(out, "java/lang/Object");
+            out.writeByte(7);
+            out.writeShort(CP_OBJECT_NAME);
+            writeUtf8(out, INTERFACE_NAME);
+            out.writeByte(7);
+            out.writeShort(CP_INTERFACE_NAME);
+            writeUtf8(out, "<init>");
+            writeUtf8(out, "()V");
+            out.writeByte(12);  // CONSTANT_NameAndType
+            out.writeShort(CP_INIT_NAME);
+            out.writeShort(CP_INIT_DESC);
+            out.writeByte(10);  // CONSTANT_Methodref
+            out.writeShort(CP_OBJECT_CLASS);
+            out.writeShort(CP_INIT_NAME_AND_TYPE);
+            writeUtf8(out, "apply");
+            writeUtf8(out, "([F)F");
+            writeUtf8(out, "Code");
+            for (var value : constants.values) {
+                out.writeByte(4);  // CONSTANT_Float
+                out.writeInt(Float.floatToRawIntBits(value));
+            }
+
+            out.writeShort(0x0001 | 0x0010 | 0x0020);  // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            out.writeShort(CP_THIS_CLASS);
+            out.writeShort(CP_OBJECT_CLASS);
+            out.writeShort(1);  // interfaces
+            out.writeShort(CP_INTERFACE_CLASS);
+            out.writeShort(0);  // fields
+            out.writeShort(2);  // methods
+
+            // public <init>() { super(); }
+            out.writeShort(0x0001);
+            out.writeShort(CP_INIT_NAME);
+            out.writeShort(CP_INIT_DESC);
+            out.writeShort(1);
+            writeCodeAttribute(out, 1, 1, new byte[]{
+                    (byte) ALOAD_0, (byte) INVOKESPECIAL, 0, (byte) CP_OBJECT_INIT, (byte) RETURN});
+
+            // public float apply(float[] args) { return <formula>; }
+            out.writeShort(0x0001);
+            out.writeShort(CP_APPLY_NAME);
+            out.writeShort(CP_APPLY_DESC);
+            out.writeShort(1);
+            writeCodeAttribute(out, maxStack, maxLocals, applyCode);
+
+            out.writeShort(0);  // class attributes
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // can't happen - writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    static FloatFunction define(ExecutableCode exec) {
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(classBytes(exec), true);
+            return (FloatFunction) lookup.lookupClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("INTERNAL ERROR - generated class is not valid", e);
+        }
+    }
+}
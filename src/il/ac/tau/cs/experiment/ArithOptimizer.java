@@ -0,0 +1,449 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+
+import java.util.*;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * An optimizer that works on the expression itself instead of on patterns in the opcodes.
+ * It runs the code "symbolically" - instead of floats the stack holds Nodes - which rebuilds
+ * the expression as a DAG (a tree where equal sub-expressions are the same Node):
+ * - Constant folding: an operator whose two operands are constants becomes a constant - (2*3*4*5) --> 120
+ * - Products: a chain of * and / is collected into a Monomial - a constant times powers of its factors.
+ *   Our language is right associative, so x*x*x/(2*3) is x*(x*(x/6)) - as a Monomial it is x^3 / 6.
+ * - Power chains: x^n is calculated by squaring - x^4 = (x*x)*(x*x) - 2 MULs instead of 3.
+ * - Common sub-expressions: a Node is created only once for each (operator, left, right),
+ *   so the x^2 inside x^3, x^4 and x^5 is the same Node and is calculated once.
+ *   NOTE: collecting products changes the order of the multiplications (like C's -ffast-math),
+ *   so the result may differ from the original code in the last bits.
+ * Then it emits stack code for the DAG. A Node used more than once is STOREd to a temp slot
+ * the first time it is calculated, and LOADed after that.
+ */
+public class ArithOptimizer {
+    static final class Node {
+        final int id;      // index in Dag.nodes
+        final int op;      // PUSH (a constant), PARAM or one of the operators PLUS..DIV
+        final float value; // of a constant
+        final int param;   // of a PARAM - index in Dag.paramIndex
+        final Node left;
+        final Node right;
+        Monomial monomial;  // what a product / quotient node calculates - null for the other nodes
+
+        Node(int id, int op, float value, int param, Node left, Node right) {
+            this.id = id;
+            this.op = op;
+            this.value = value;
+            this.param = param;
+            this.left = left;
+            this.right = right;
+        }
+
+        boolean isLeaf() {
+            return op == PUSH || op == PARAM;
+        }
+
+        @Override
+        public String toString() {
+            return switch (op) {
+                case PUSH -> Float.toString(value);
+                case PARAM -> "$" + param;
+                default -> "(" + left + "+-*/".charAt(op - PLUS) + right + ")";
+            };
+        }
+    }
+
+    record NodeKey(int op, int valueBits, int param, int left, int right) {}
+
+    /**
+     * numeratorConst * (product of base^exponent in numerator) / (denominatorConst * product in denominator)
+     * The bases are Node ids. A base appearing on both sides is not cancelled - x/x is NaN when x is 0.
+     */
+    static final class Monomial {
+        final TreeMap<Integer, Integer> numerator = new TreeMap<>();
+        final TreeMap<Integer, Integer> denominator = new TreeMap<>();
+        float numeratorConst = 1.0F;
+        float denominatorConst = 1.0F;
+
+        static Monomial of(Node node) {
+            if (node.monomial != null) {
+                return node.monomial;
+            }
+            var monomial = new Monomial();
+            if (node.op == PUSH) {
+                monomial.numeratorConst = node.value;
+            } else {
+                monomial.numerator.put(node.id, 1);
+            }
+            return monomial;
+        }
+
+        static Monomial combine(int op, Monomial left, Monomial right) {
+            var result = new Monomial();
+            result.numerator.putAll(left.numerator);
+            result.denominator.putAll(left.denominator);
+            if (op == MUL) {
+                right.numerator.forEach((base, exponent) -> result.numerator.merge(base, exponent, Integer::sum));
+                right.denominator.forEach((base, exponent) -> result.denominator.merge(base, exponent, Integer::sum));
+                result.numeratorConst = left.numeratorConst * right.numeratorConst;
+                result.denominatorConst = left.denominatorConst * right.denominatorConst;
+            } else {
+                right.numerator.forEach((base, exponent) -> result.denominator.merge(base, exponent, Integer::sum));
+                right.denominator.forEach((base, exponent) -> result.numerator.merge(base, exponent, Integer::sum));
+                result.numeratorConst = left.numeratorConst * right.denominatorConst;
+                result.denominatorConst = left.denominatorConst * right.numeratorConst;
+            }
+            return result;
+        }
+
+        int size() {
+            return numerator.size() + denominator.size();
+        }
+    }
+
+    // Longer products are left as they are - merging them over and over would be quadratic
+    static final int MAX_MONOMIAL_SIZE = 64;
+
+    static float fold(int op, float leftVal, float rightVal) {
+        return switch (op) {
+            case PLUS -> leftVal + rightVal;
+            case MINUS -> leftVal - rightVal;
+            case MUL -> leftVal * rightVal;
+            case DIV -> leftVal / rightVal;
+            default -> throw new IllegalStateException("Unexpected value: " + op);
+        };
+    }
+
+    /**
+     * The nodes of one or more expressions.
+     * Nodes are only created after their operands, so 'nodes' is always in topological order.
+     */
+    static final class Dag {
+        final ArrayList<Node> nodes = new ArrayList<>();
+        final ArrayList<String> paramIndex = new ArrayList<>();
+        private final HashMap<String, Node> params = new HashMap<>();
+        private final HashMap<NodeKey, Node> unique = new HashMap<>();
+
+        private Node node(int op, float value, int param, Node left, Node right) {
+            var key = new NodeKey(op, Float.floatToRawIntBits(value), param,
+                    left == null ? -1 : left.id, right == null ? -1 : right.id);
+            var node = unique.get(key);
+            if (node != null) {
+                return node;
+            }
+            node = new Node(nodes.size(), op, value, param, left, right);
+            if (op == MUL || op == DIV) {
+                var monomial = Monomial.combine(op, Monomial.of(left), Monomial.of(right));
+                if (monomial.size() <= MAX_MONOMIAL_SIZE) {
+                    node.monomial = monomial;
+                }
+            }
+            nodes.add(node);
+            unique.put(key, node);
+            return node;
+        }
+
+        Node constant(float value) {
+            return node(PUSH, value, -1, null, null);
+        }
+
+        Node param(String name) {
+            var node = params.get(name);
+            if (node == null) {
+                node = node(PARAM, 0.0F, paramIndex.size(), null, null);
+                paramIndex.add(name);
+                params.put(name, node);
+            }
+            return node;
+        }
+
+        Node binary(int op, Node left, Node right) {
+            if (left.op == PUSH && right.op == PUSH) {
+                return constant(fold(op, left.value, right.value));
+            }
+            if (op == MUL || op == DIV) {
+                var monomial = Monomial.combine(op, Monomial.of(left), Monomial.of(right));
+                if (monomial.size() <= MAX_MONOMIAL_SIZE) {
+                    return build(monomial);
+                }
+            }
+            return node(op, 0.0F, -1, left, right);
+        }
+
+        /**
+         * base^exponent by repeated squaring - x^5 = x * (x^2)^2
+         */
+        Node power(Node base, int exponent) {
+            if (exponent == 1) {
+                return base;
+            }
+            if (exponent % 2 == 0) {
+                var half = power(base, exponent / 2);
+                return node(MUL, 0.0F, -1, half, half);
+            }
+            return node(MUL, 0.0F, -1, base, power(base, exponent - 1));
+        }
+
+        /**
+         * The product of the powers, in the order of the bases' ids - so equal products are the same Node
+         * @return null for an empty product
+         */
+        private Node product(TreeMap<Integer, Integer> powers, float constant) {
+            Node result = constant == 1.0F ? null : constant(constant);
+            for (var entry : powers.entrySet()) {
+                var factor = power(nodes.get(entry.getKey()), entry.getValue());
+                result = result == null ? factor : node(MUL, 0.0F, -1, result, factor);
+            }
+            return result;
+        }
+
+        /**
+         * A canonical node for the monomial - numerator / denominator
+         */
+        Node build(Monomial monomial) {
+            var numerator = product(monomial.numerator, monomial.numeratorConst);
+            var denominator = product(monomial.denominator, monomial.denominatorConst);
+            if (numerator == null) {
+                numerator = constant(1.0F);
+            }
+            if (denominator == null) {
+                return numerator;
+            }
+            if (numerator.op == PUSH && denominator.op == PUSH) {
+                return constant(fold(DIV, numerator.value, denominator.value));
+            }
+            return node(DIV, 0.0F, -1, numerator, denominator);
+        }
+
+        /**
+         * @return only the nodes the roots need - in topological order
+         */
+        List<Node> reachable(Node... roots) {
+            var needed = new boolean[nodes.size()];
+            var toVisit = new ArrayDeque<Node>(Arrays.asList(roots));
+            while (!toVisit.isEmpty()) {
+                var node = toVisit.pop();
+                if (needed[node.id]) {
+                    continue;
+                }
+                needed[node.id] = true;
+                if (!node.isLeaf()) {
+                    toVisit.push(node.left);
+                    toVisit.push(node.right);
+                }
+            }
+            var result = new ArrayList<Node>();
+            for (var node : nodes) {
+                if (needed[node.id]) {
+                    result.add(node);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Runs the code with Nodes on the stack instead of floats
+         * @return the Node of the code's result
+         */
+        Node addCode(ExecutableCode exec) {
+            var paramNodes = new Node[exec.paramIndex().length];
+            for (int i = 0; i < paramNodes.length; i++) {
+                paramNodes[i] = param(exec.paramIndex()[i]);
+            }
+            var code = exec.opCodes();
+            var stack = new Node[exec.maxStackDepth()];
+            var temps = new Node[exec.numTemps()];
+            int sp = 0;
+            Node a;
+            for (int pc = 0; pc < code.length; pc++) {
+                switch ((int) code[pc]) {
+                    case NOOP -> {}
+                    case PUSH -> stack[sp++] = constant(code[++pc]);
+                    case PARAM -> stack[sp++] = paramNodes[(int) code[++pc]];
+                    case PLUS, MINUS, MUL, DIV -> {
+                        sp--;
+                        stack[sp - 1] = binary((int) code[pc], stack[sp - 1], stack[sp]);
+                    }
+                    case SWAP -> {
+                        a = stack[sp - 1];
+                        stack[sp - 1] = stack[sp - 2];
+                        stack[sp - 2] = a;
+                    }
+                    case DUP -> {
+                        stack[sp] = stack[sp - 1];
+                        sp++;
+                    }
+                    case ZERO -> stack[sp++] = constant(0.0F);
+                    case ONE -> stack[sp++] = constant(1.0F);
+                    case STORE -> temps[(int) code[++pc]] = stack[sp - 1];
+                    case LOAD -> stack[sp++] = temps[(int) code[++pc]];
+                    default -> throw new IllegalStateException("Unexpected value: " + (int) code[pc]);
+                }
+            }
+            return stack[0];
+        }
+    }
+
+    /**
+     * Writes stack code for a DAG - each Node is calculated once
+     */
+    static final class StackCodeEmitter {
+        private final int[] uses;    // by Node.id - how many parents use the node
+        private final int[] tempOf;  // by Node.id - the temp slot holding the node's value, or -1
+        private float[] code = new float[16];
+        private int size = 0;
+        private int numTemps = 0;
+
+        StackCodeEmitter(Dag dag) {
+            uses = new int[dag.nodes.size()];
+            tempOf = new int[dag.nodes.size()];
+            Arrays.fill(tempOf, -1);
+        }
+
+        private void append(int op) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, size * 2);
+            }
+            code[size++] = op;
+        }
+
+        private void append(int op, float operand) {
+            append(op);
+            append(0);
+            code[size - 1] = operand;
+        }
+
+        // Both walks use their own stack instead of recursion - a generated formula can be
+        // hundreds of thousands of nodes deep
+
+        void countUses(Node root) {
+            var toVisit = new ArrayDeque<Node>();
+            toVisit.push(root);
+            while (!toVisit.isEmpty()) {
+                var node = toVisit.pop();
+                if (uses[node.id]++ > 0 || node.isLeaf()) {
+                    continue;  // the children were counted on the first visit
+                }
+                toVisit.push(node.left);
+                if (node.right != node.left) {  // x*x uses x once - with a DUP
+                    toVisit.push(node.right);
+                }
+            }
+        }
+
+        void emit(Node root) {
+            var toVisit = new ArrayDeque<Node>();
+            var expanded = new boolean[uses.length];  // the node's operands are being emitted
+            toVisit.push(root);
+            while (!toVisit.isEmpty()) {
+                var node = toVisit.pop();
+                if (expanded[node.id]) {
+                    // both operands are on the stack now
+                    expanded[node.id] = false;
+                    if (node.right == node.left) {
+                        append(DUP);
+                    }
+                    append(node.op);
+                    if (uses[node.id] > 1) {
+                        tempOf[node.id] = numTemps++;
+                        append(STORE, tempOf[node.id]);
+                    }
+                } else if (tempOf[node.id] >= 0) {
+                    append(LOAD, tempOf[node.id]);
+                } else if (node.op == PUSH) {
+                    append(PUSH, node.value);
+                } else if (node.op == PARAM) {
+                    append(PARAM, node.param);
+                } else {
+                    expanded[node.id] = true;
+                    toVisit.push(node);
+                    if (node.right != node.left) {
+                        toVisit.push(node.right);
+                    }
+                    toVisit.push(node.left);
+                }
+            }
+        }
+
+        float[] code() {
+            return Arrays.copyOf(code, size);
+        }
+    }
+
+    public static ExecutableCode optimize(ExecutableCode exec) {
+        var dag = new Dag();
+        var root = dag.addCode(exec);
+        var emitter = new StackCodeEmitter(dag);
+        emitter.countUses(root);
+        emitter.emit(root);
+        return new ExecutableCode(emitter.code(), dag.paramIndex.toArray(new String[0]));
+    }
+
+    /**
+     * The number of opcodes (not counting their operands) - what the runner dispatches on
+     */
+    public static int countInstructions(ExecutableCode exec) {
+        int count = 0;
+        for (int pc = 0; pc < exec.opCodes().length; pc++) {
+            if (hasOperand((int) exec.opCodes()[pc])) {
+                pc++;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    public static void testOptimizer() {
+        testInterpreter((source, params) -> runNoAlloc(optimize(compile(source)), params));
+        testInterpreter((source, params) -> run(optimize(compile(source)), params));
+        check(optimize(compile("x + (2*3*4*5)")).opCodes()[3], 120.0F);
+        check((float) countInstructions(optimize(compile("(2*3)-(4/5)"))), 1.0F);
+
+        // Optimized code should agree with the original code (up to rounding) on random inputs
+        var sources = List.of(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))",
+                "(x*x) + (2*x*y) + (y*y)",
+                "(x*y*x*y*x) - ((x*y) / (y*x*y*x*y))",
+                "x*x*x*x*x*x*x*x*x*x*x - (x*x*x*x*x*x*x)");
+        var rand = new Random(17);
+        for (var source : sources) {
+            var exec = compile(source);
+            var optimized = optimize(exec);
+            if (countInstructions(optimized) > countInstructions(exec)) {
+                throw new RuntimeException("ERROR - optimizer made the code longer " + source);
+            }
+            for (int i = 0; i < 100; i++) {
+                var params = Map.of("x", rand.nextFloat() + 0.5F, "y", rand.nextFloat() + 0.5F);
+                float expected = run(exec, params);
+                float actual = run(optimized, params);
+                if (Math.abs(expected - actual) > 1e-5 * Math.max(1.0F, Math.abs(expected))) {
+                    throw new RuntimeException(String.format(
+                            "ERROR %s: expecting %f, got %f", source, expected, actual));
+                }
+            }
+        }
+    }
+
+    public static void profileOptimizer() {
+        var exec = compile("1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))");
+        var patternOptimized = ArithCompile.optimize(exec);
+        var dagOptimized = optimize(exec);
+        System.out.printf("instructions: compiled %d, pattern optimizer %d, DAG optimizer %d%n",
+                countInstructions(exec), countInstructions(patternOptimized), countInstructions(dagOptimized));
+        var args = new float[]{1.0F};
+        for (int round = 0; round < 2; round++) {  // the first round also warms up the JIT
+            // Same measurement as ArithCompile.profileCompilerOptimizer
+            ArithInterpreter.timeIt(() -> run(patternOptimized, Map.of("x", 1.0F)));
+            ArithInterpreter.timeIt(() -> run(dagOptimized, Map.of("x", 1.0F)));
+            // and with bound parameters
+            ArithInterpreter.timeIt(() -> run(patternOptimized, args));
+            ArithInterpreter.timeIt(() -> run(dagOptimized, args));
+        }
+    }
+
+    public static void main(String[] args) {
+        testOptimizer();
+        profileOptimizer();
+    }
+}
@@ -0,0 +1,139 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * Runs ArithVector.runBatch on all cores.
+ * The rows are cut into chunks and each worker thread keeps taking the next free chunk,
+ * so a slow thread just ends up doing fewer chunks. Every worker writes only its own chunks
+ * of the shared result array - chunks are large and a whole number of cache lines, so two threads
+ * never keep writing to the same cache line (no false sharing).
+ */
+public class ArithParallel implements AutoCloseable {
+    static final int CACHE_LINE_FLOATS = 64 / Float.BYTES;
+    static final int DEFAULT_CHUNK_ROWS = 64 * 1024;
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int parallelism;
+    private final int chunkRows;
+
+    /**
+     * @param threads number of worker threads - a ForkJoinPool of this size is created (and closed by close())
+     * @param chunkRows rows in each unit of work - rounded up to a whole number of cache lines
+     */
+    public ArithParallel(int threads, int chunkRows) {
+        this(new ForkJoinPool(threads), threads, chunkRows, true);
+    }
+
+    /**
+     * Runs on a caller's executor - which is left open by close()
+     * @param parallelism how many workers to submit to the executor per batch
+     */
+    public ArithParallel(ExecutorService executor, int parallelism, int chunkRows) {
+        this(executor, parallelism, chunkRows, false);
+    }
+
+    public ArithParallel() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_ROWS);
+    }
+
+    private ArithParallel(ExecutorService executor, int parallelism, int chunkRows, boolean ownsExecutor) {
+        if (parallelism < 1 || chunkRows < 1) {
+            throw new IllegalArgumentException("parallelism and chunkRows must be positive");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.chunkRows = (chunkRows + CACHE_LINE_FLOATS - 1) / CACHE_LINE_FLOATS * CACHE_LINE_FLOATS;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    public void runBatch(ExecutableCode exec, float[][] columns, float[] result) {
+        int rows = result.length;
+        int numChunks = (rows + chunkRows - 1) / chunkRows;
+        var nextChunk = new AtomicInteger();
+        var workers = new ArrayList<Future<?>>();
+        for (int i = 0; i < Math.min(parallelism, numChunks); i++) {
+            workers.add(executor.submit(() -> {
+                var stack = ArithVector.newStack(exec);  // one per worker - not per chunk
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < numChunks) {
+                    int from = chunk * chunkRows;
+                    int to = Math.min(rows, from + chunkRows);
+                    ArithVector.runBatch(exec, columns, result, from, to, stack);
+                }
+            }));
+        }
+        for (var worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    public static void testParallel() {
+        var exec = optimize(compile("(x*x) + (2*x*y) + (y*y) - (x/(y+1))"));
+        int rows = 100_003;
+        var columns = new float[][]{ArithVector.randomColumn(rows), ArithVector.randomColumn(rows)};
+        var expected = new float[rows];
+        ArithVector.runBatch(exec, columns, expected);
+        try (var parallel = new ArithParallel(3, 1000)) {
+            var result = new float[rows];
+            parallel.runBatch(exec, columns, result);
+            for (int row = 0; row < rows; row++) {
+                check(result[row], expected[row]);
+            }
+        }
+    }
+
+    public static void profileParallel(int rows) {
+        var exec = optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        var columns = new float[][]{ArithVector.randomColumn(rows)};
+        var result = new float[rows];
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            try (var parallel = new ArithParallel(threads, DEFAULT_CHUNK_ROWS)) {
+                parallel.runBatch(exec, columns, result);  // warm up
+                long startTime = System.nanoTime();
+                parallel.runBatch(exec, columns, result);
+                System.out.printf("threads=%d msec = %d%n", threads, (System.nanoTime() - startTime) / 1_000_000);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        testParallel();
+        // 100M rows need ~800MB of heap (input and output column) - run with -Xmx2g
+        profileParallel(args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000);
+    }
+}
@@ -0,0 +1,206 @@
+package il.ac.tau.cs.experiment;
+
+import java.util.Arrays;
+
+/**
+ * The parser shared by ArithInterpreter and ArithCompile.
+ * It walks the source code one character at a time, with an index into the original string -
+ * no regular expressions and no substrings - so parsing is linear in the length of the source.
+ * The language is the one described in ArithInterpreter:
+ *    expression := primary [operator expression]     (so it is right associative)
+ *    primary := number | parameter | '(' expression ')'
+ * Whitespace is ignored anywhere - even inside a number or a parameter name - just like
+ * the original implementation that removed all whitespace before parsing.
+ * The parser reports what it found to a PostfixSink in postfix (reverse polish) order:
+ *    2*3+x --> number(2) number(3) param(x) operator(+) operator(*)
+ * which is the order a stack machine needs - and also the order to calculate the value in.
+ * Generated formulas can be megabytes long, so the parser doesn't recurse - it keeps the pending
+ * operators and open parentheses on its own stack (a shunting-yard without precedence):
+ * an operator waits until the expression it starts ends, at ')' or at the end of the source.
+ */
+public class ArithParser {
+    public interface PostfixSink {
+        void number(float value);
+        void param(String name);
+        void operator(char operator);
+    }
+
+    // Up to this many digits a double holds the number exactly - so one cast to float rounds it correctly
+    static final int MAX_EXACT_DIGITS = 15;
+
+    private final String sourceCode;
+    private final PostfixSink sink;
+    private int pos = 0;
+    private char[] pending = new char[16];  // operators waiting for their right operand, and '('
+    private int pendingSize = 0;
+
+    public ArithParser(String sourceCode, PostfixSink sink) {
+        this.sourceCode = sourceCode;
+        this.sink = sink;
+    }
+
+    public static void parse(String sourceCode, PostfixSink sink) {
+        new ArithParser(sourceCode, sink).parse();
+    }
+
+    public void parse() {
+        parseExpression();  // returns only at the end of the source
+    }
+
+    /**
+     * The source code without whitespace - two sources with the same normalized code mean the same thing
+     */
+    public static String normalize(String sourceCode) {
+        for (int i = 0; i < sourceCode.length(); i++) {
+            if (Character.isWhitespace(sourceCode.charAt(i))) {
+                return stripWhitespace(sourceCode);
+            }
+        }
+        return sourceCode;
+    }
+
+    static String stripWhitespace(CharSequence text) {
+        var result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    public static boolean isOperator(int c) {
+        return c == '+' || c == '-' || c == '*' || c == '/';
+    }
+
+    static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    static boolean isIdentifierStart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    static boolean isIdentifierPart(int c) {
+        return isIdentifierStart(c) || isDigit(c);
+    }
+
+    /**
+     * @return the next non-whitespace character (without consuming it) or -1 at the end of the source
+     */
+    int peek() {
+        while (pos < sourceCode.length() && Character.isWhitespace(sourceCode.charAt(pos))) {
+            pos++;
+        }
+        return pos < sourceCode.length() ? sourceCode.charAt(pos) : -1;
+    }
+
+    RuntimeException error(String what) {
+        return new RuntimeException(String.format(
+                "%s in location %d in code %s", what, pos, sourceCode));
+    }
+
+    private void push(char c) {
+        if (pendingSize == pending.length) {
+            pending = Arrays.copyOf(pending, pendingSize * 2);
+        }
+        pending[pendingSize++] = c;
+    }
+
+    void parseExpression() {
+        for (;;) {
+            parsePrimary();
+            if (!parseOperator()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses a number, a parameter or as many '(' as there are, up to the first number or parameter
+     */
+    void parsePrimary() {
+        for (;;) {
+            int c = peek();
+            if (isDigit(c)) {
+                sink.number(parseNumber());
+                return;
+            } else if (isIdentifierStart(c)) {
+                sink.param(parseIdentifier());
+                return;
+            } else if (c == '(') {
+                pos++;
+                push('(');
+            } else {
+                throw error("Missing number, parameter or '('");
+            }
+        }
+    }
+
+    /**
+     * After a primary - parses the operator starting the rest of the expression, or ends expressions:
+     * every ')' ends the expression inside it, and the end of the source ends the outermost one.
+     * An expression that ends reports its pending operators - the last one first (right associative).
+     * @return true if there is an operator and so another primary follows, false at the end of the source
+     */
+    boolean parseOperator() {
+        for (;;) {
+            int c = peek();
+            if (isOperator(c)) {
+                pos++;
+                push((char) c);
+                return true;
+            }
+            if (c >= 0 && c != ')') {
+                throw error("Missing ')' or EOF");
+            }
+            while (pendingSize > 0 && pending[pendingSize - 1] != '(') {
+                sink.operator(pending[--pendingSize]);
+            }
+            if (c < 0) {
+                if (pendingSize > 0) {
+                    throw error("Missing ')'");
+                }
+                return false;
+            }
+            if (pendingSize == 0) {
+                throw error("Missing EOF");
+            }
+            pendingSize--;  // the '(' of this ')'
+            pos++;
+        }
+    }
+
+    float parseNumber() {
+        int start = pos;
+        double value = 0;
+        int digits = 0;
+        while (isDigit(peek())) {
+            value = value * 10 + (sourceCode.charAt(pos) - '0');
+            digits++;
+            pos++;
+        }
+        if (digits > MAX_EXACT_DIGITS) {
+            return Float.parseFloat(stripWhitespace(sourceCode.subSequence(start, pos)));
+        }
+        return (float) value;
+    }
+
+    String parseIdentifier() {
+        int start = pos;
+        boolean hasWhitespace = false;
+        pos++;  // the first letter
+        for (;;) {
+            int end = pos;
+            if (!isIdentifierPart(peek())) {
+                pos = end;  // whitespace after the name belongs to whatever comes next
+                break;
+            }
+            hasWhitespace |= pos != end;
+            pos++;
+        }
+        var name = sourceCode.substring(start, pos);
+        return hasWhitespace ? stripWhitespace(name) : name;
+    }
+}
@@ -0,0 +1,264 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+import il.ac.tau.cs.experiment.ArithCompile.ParamBinder;
+import il.ac.tau.cs.experiment.ArithOptimizer.Dag;
+import il.ac.tau.cs.experiment.ArithOptimizer.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * A second kind of executable code - for a register machine instead of a stack machine.
+ * Every instruction names where its operands are and where to put the result: r3 = r1 * r2
+ * so there are no PUSH/DUP/SWAP/LOAD/STORE instructions - only the arithmetic itself.
+ * The code is generated from the same DAG as ArithOptimizer (so it gets the same constant folding
+ * and common sub-expressions) - one instruction per operator node.
+ */
+public class ArithRegisterVM {
+    /**
+     * code holds 4 ints per instruction: operator (PLUS..DIV as in ExecutableCode), dst, left, right
+     * meaning register[dst] = register[left] (operator) register[right]
+     * The registers are one float[] of numRegisters:
+     *    [0, paramIndex.length) - the parameters, in paramIndex order
+     *    then the constants (copied from 'constants' before running)
+     *    then the temporaries - the compiler reuses a temporary once its value is not needed anymore
+     *
+     * @param results the registers holding the results when the code ends - one per formula
+     */
+    public record RegisterCode(int[] code, float[] constants, String[] paramIndex, int numRegisters, int[] results) {}
+
+    static final int INSTRUCTION_SIZE = 4;
+
+    /**
+     * Compiles the DAG of one or more formulas - roots are the formulas' results
+     */
+    static RegisterCode compile(Dag dag, Node[] roots) {
+        int numParams = dag.paramIndex.size();
+        var register = new int[dag.nodes.size()];
+        var constants = new ArrayList<Float>();
+        var operators = new ArrayList<Node>();
+        for (var node : dag.reachable(roots)) {
+            switch (node.op) {
+                case PARAM -> register[node.id] = node.param;
+                case PUSH -> {
+                    register[node.id] = numParams + constants.size();
+                    constants.add(node.value);
+                }
+                default -> operators.add(node);
+            }
+        }
+
+        // Register allocation - a temporary is free again after the last instruction reading it
+        var lastUse = new int[dag.nodes.size()];
+        for (int i = 0; i < operators.size(); i++) {
+            lastUse[operators.get(i).left.id] = i;
+            lastUse[operators.get(i).right.id] = i;
+        }
+        for (var root : roots) {
+            lastUse[root.id] = Integer.MAX_VALUE;  // results must survive to the end
+        }
+        int firstTemp = numParams + constants.size();
+        int numRegisters = firstTemp;
+        var freeTemps = new ArrayDeque<Integer>();
+        var code = new int[operators.size() * INSTRUCTION_SIZE];
+        for (int i = 0; i < operators.size(); i++) {
+            var node = operators.get(i);
+            // operands read for the last time can be overwritten by this very instruction
+            for (var operand : node.left == node.right ? new Node[]{node.left} : new Node[]{node.left, node.right}) {
+                if (!operand.isLeaf() && lastUse[operand.id] == i) {
+                    freeTemps.push(register[operand.id]);
+                }
+            }
+            register[node.id] = freeTemps.isEmpty() ? numRegisters++ : freeTemps.pop();
+            code[i * INSTRUCTION_SIZE] = node.op;
+            code[i * INSTRUCTION_SIZE + 1] = register[node.id];
+            code[i * INSTRUCTION_SIZE + 2] = register[node.left.id];
+            code[i * INSTRUCTION_SIZE + 3] = register[node.right.id];
+        }
+
+        var results = new int[roots.length];
+        for (int i = 0; i < roots.length; i++) {
+            results[i] = register[roots[i].id];
+        }
+        var constantValues = new float[constants.size()];
+        for (int i = 0; i < constantValues.length; i++) {
+            constantValues[i] = constants.get(i);
+        }
+        return new RegisterCode(code, constantValues, dag.paramIndex.toArray(new String[0]), numRegisters, results);
+    }
+
+    public static RegisterCode compile(ExecutableCode exec) {
+        var dag = new Dag();
+        var root = dag.addCode(exec);
+        return compile(dag, new Node[]{root});
+    }
+
+    public static RegisterCode compile(String sourceCode) {
+        return compile(ArithCompile.compile(sourceCode));
+    }
+
+    /**
+     * Compiles several formulas into one program that calculates all of them in one pass.
+     * They all go into the same DAG - so a parameter is one register however many formulas use it,
+     * and a sub-expression common to several formulas is calculated once.
+     * results[i] is the register of sourceCodes.get(i)
+     */
+    public static RegisterCode compileAll(List<String> sourceCodes) {
+        var dag = new Dag();
+        var roots = new Node[sourceCodes.size()];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = dag.addCode(ArithCompile.compile(sourceCodes.get(i)));
+        }
+        return compile(dag, roots);
+    }
+
+    /**
+     * Runs the code - after it the result registers hold the results
+     * @param registers at least rc.numRegisters
+     */
+    static void execute(RegisterCode rc, float[] args, float[] registers) {
+        if (args.length < rc.paramIndex.length) {
+            throw new RuntimeException(String.format(
+                    "Expecting %d parameters, got %d", rc.paramIndex.length, args.length));
+        }
+        System.arraycopy(args, 0, registers, 0, rc.paramIndex.length);
+        System.arraycopy(rc.constants, 0, registers, rc.paramIndex.length, rc.constants.length);
+        var code = rc.code;
+        for (int pc = 0; pc < code.length; pc += INSTRUCTION_SIZE) {
+            int dst = code[pc + 1];
+            float left = registers[code[pc + 2]];
+            float right = registers[code[pc + 3]];
+            switch (code[pc]) {
+                case PLUS -> registers[dst] = left + right;
+                case MINUS -> registers[dst] = left - right;
+                case MUL -> registers[dst] = left * right;
+                case DIV -> registers[dst] = left / right;
+                default -> throw new IllegalStateException("Unexpected value: " + code[pc]);
+            }
+        }
+    }
+
+    /**
+     * @param args args[i] is the value of rc.paramIndex[i] (see ParamBinder)
+     */
+    public static float run(RegisterCode rc, float[] args) {
+        var registers = threadStack(rc.numRegisters);
+        execute(rc, args, registers);
+        return registers[rc.results[0]];
+    }
+
+    /**
+     * Runs code with any number of results (see compileAll)
+     * @param results at least rc.results.length - result[i] is the value of formula i
+     * @return results
+     */
+    public static float[] runAll(RegisterCode rc, float[] args, float[] results) {
+        var registers = threadStack(rc.numRegisters);
+        execute(rc, args, registers);
+        for (int i = 0; i < rc.results.length; i++) {
+            results[i] = registers[rc.results[i]];
+        }
+        return results;
+    }
+
+    public static float[] runAll(RegisterCode rc, float[] args) {
+        return runAll(rc, args, new float[rc.results.length]);
+    }
+
+    public static float interpret(String sourceCode, Map<String, Float> params) {
+        var rc = compile(sourceCode);
+        return run(rc, new ParamBinder(rc.paramIndex).bind(params));
+    }
+
+    public static void testRegisterVM() {
+        testInterpreter(ArithRegisterVM::interpret);
+        // register reuse - the inner temporaries of each term are free for the next term
+        var rc = compile("((a+b)*(c+d)) + ((a-b)*(c-d)) + ((a*b)-(c*d))");
+        var args = new ParamBinder(rc.paramIndex).bind(Map.of("a", 1.0F, "b", 2.0F, "c", 3.0F, "d", 5.0F));
+        check(run(rc, args), 24.0F + 2.0F - 13.0F);
+        if (rc.numRegisters > rc.paramIndex.length + 4) {
+            throw new RuntimeException("ERROR - temporaries were not reused: " + rc.numRegisters);
+        }
+    }
+
+    // Taylor series of e^x truncated after 1..5 powers of x
+    static final List<String> TAYLOR_TRUNCATIONS = List.of(
+            "1 + x",
+            "1 + x + (x*x/2)",
+            "1 + x + (x*x/2) + (x*x*x/(2*3))",
+            "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4))",
+            "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))");
+
+    public static void testMultiOutput() {
+        var rc = compileAll(TAYLOR_TRUNCATIONS);
+        var results = runAll(rc, new float[]{1.0F});
+        check(results[0], 2.0F);
+        check(results[1], 2.5F);
+        check(results[4], 2.716667F);
+        // params are unified by name - whatever order each formula mentions them in
+        rc = compileAll(List.of("a-b", "b*c", "c", "7", "(a-b)+(b*c)"));
+        var binder = new ParamBinder(rc.paramIndex);
+        results = runAll(rc, binder.bind(Map.of("a", 5.0F, "b", 2.0F, "c", 4.0F)));
+        check((float) rc.paramIndex.length, 3.0F);
+        check(results[0], 3.0F);
+        check(results[1], 8.0F);
+        check(results[2], 4.0F);
+        check(results[3], 7.0F);
+        check(results[4], 11.0F);
+        if (rc.code.length / INSTRUCTION_SIZE != 3) {  // a-b and b*c are shared with the last formula
+            throw new RuntimeException("ERROR - sub-expressions were not shared: " + rc.code.length);
+        }
+    }
+
+    public static void profileMultiOutput() {
+        var separate = TAYLOR_TRUNCATIONS.stream()
+                .map(source -> ArithOptimizer.optimize(ArithCompile.compile(source)))
+                .toArray(ExecutableCode[]::new);
+        var rc = compileAll(TAYLOR_TRUNCATIONS);
+        int separateInstructions = 0;
+        for (var exec : separate) {
+            separateInstructions += ArithOptimizer.countInstructions(exec);
+        }
+        System.out.printf("instructions: %d separate stack VM programs %d, one register VM program %d%n",
+                separate.length, separateInstructions, rc.code.length / INSTRUCTION_SIZE);
+        var args = new float[]{1.0F};
+        var results = new float[separate.length];
+        for (int round = 0; round < 2; round++) {  // the first round also warms up the JIT
+            System.out.print("separate: ");
+            ArithInterpreter.timeIt(() -> {
+                for (int i = 0; i < separate.length; i++) {
+                    results[i] = ArithCompile.run(separate[i], args);
+                }
+            });
+            System.out.print("multi-output: ");
+            ArithInterpreter.timeIt(() -> runAll(rc, args, results));
+        }
+    }
+
+    public static void profileRegisterVM() {
+        var source = "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))";
+        var exec = ArithOptimizer.optimize(ArithCompile.compile(source));
+        var rc = compile(source);
+        System.out.printf("instructions: stack VM %d, register VM %d%n",
+                ArithOptimizer.countInstructions(exec), rc.code.length / INSTRUCTION_SIZE);
+        var args = new float[]{1.0F};
+        for (int round = 0; round < 2; round++) {  // the first round also warms up the JIT
+            System.out.print("stack VM: ");
+            ArithInterpreter.timeIt(() -> ArithCompile.run(exec, args));
+            System.out.print("register VM: ");
+            ArithInterpreter.timeIt(() -> run(rc, args));
+        }
+    }
+
+    public static void main(String[] args) {
+        testRegisterVM();
+        testMultiOutput();
+        profileRegisterVM();
+        profileMultiOutput();
+    }
+}
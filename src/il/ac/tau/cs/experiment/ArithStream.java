@@ -0,0 +1,702 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * Evaluates a formula over a data file that may be larger than RAM - one result per row, written to another file.
+ * The input columns are bound to the formula's parameters by their header names, other columns are ignored.
+ * The work is a pipeline of three threads passing batches of rows to each other:
+ *    reader (parses the memory mapped input) --> evaluator (ArithVector) --> writer (the calling thread)
+ * so reading, evaluating and writing overlap. There is a fixed pool of batches - a stage that runs ahead
+ * waits for the slower stage to give a batch back (backpressure), so memory use doesn't depend on the file size.
+ * Two formats:
+ *    CSV - a header line with the column names, then one line per row of comma separated numbers
+ *    BINARY - little endian: int MAGIC, short VERSION, short number-of-columns, the names (int length + UTF-8)
+ *             then blocks: int rows, and the block's values column after column (rows floats per column)
+ * The output has one column named "result".
+ */
+public class ArithStream {
+    public enum Format {
+        CSV, BINARY;
+
+        public static Format of(Path path) {
+            return path.getFileName().toString().toLowerCase().endsWith(".csv") ? CSV : BINARY;
+        }
+    }
+
+    /**
+     * @param readNanos, evalNanos, writeNanos how long each stage was busy - more than elapsedNanos together
+     *                   when the stages overlap
+     */
+    public record Stats(long rows, long elapsedNanos, long readNanos, long evalNanos, long writeNanos) {}
+
+    static final int MAGIC = 0x434F4C53;  // "COLS"
+    static final short VERSION = 1;
+    static final String RESULT_COLUMN = "result";
+    static final int BATCH_ROWS = 64 * ArithVector.CHUNK;
+    static final int POOL_SIZE = 4;  // batches in flight - one per stage and a spare
+    // Large files are mapped a window at a time - a MappedByteBuffer can't be larger than 2GB anyway
+    static final int MAP_WINDOW = 64 << 20;
+
+    static final class Batch {
+        final float[][] columns;  // by paramIndex
+        final float[][] result;   // one column
+        int rows;
+
+        Batch(int numColumns, int capacity) {
+            columns = new float[numColumns][capacity];
+            result = new float[1][capacity];
+        }
+    }
+
+    // Passed down the pipeline after the last batch
+    private static final Batch END = new Batch(0, 0);
+
+    interface ColumnReader extends Closeable {
+        String[] header();
+
+        /**
+         * Reads the next rows - file column c goes to columns[slotOf[c]], or is skipped if slotOf[c] < 0
+         * @return the number of rows read, 0 at the end of the file
+         */
+        int read(int[] slotOf, float[][] columns, int maxRows) throws IOException;
+    }
+
+    interface ColumnWriter {
+        void write(float[][] columns, int rows) throws IOException;
+
+        default void finish() throws IOException {}
+    }
+
+    /**
+     * A read-only window into a large file
+     */
+    static class MappedInput implements Closeable {
+        final FileChannel channel;
+        final long size;
+        ByteBuffer window;
+        long windowStart;
+
+        MappedInput(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            map(0, 0);
+        }
+
+        /**
+         * Moves the window to start at 'start' (a file position) - and hold at least minLength bytes if the file does
+         */
+        void map(long start, int minLength) throws IOException {
+            windowStart = start;
+            long length = Math.min(Math.max(MAP_WINDOW, minLength), size - start);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Makes sure the window holds the next length bytes (or the rest of the file)
+         */
+        void ensure(int length) throws IOException {
+            if (window.remaining() < length && windowStart + window.limit() < size) {
+                map(windowStart + window.position(), length);
+            }
+        }
+
+        long position() {
+            return windowStart + window.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static final class CsvReader extends MappedInput implements ColumnReader {
+        static final int MAX_LINE = 64 * 1024;
+        // Powers of ten that are exact floats
+        static final float[] POW10 = {1e0F, 1e1F, 1e2F, 1e3F, 1e4F, 1e5F, 1e6F, 1e7F, 1e8F, 1e9F, 1e10F};
+
+        private final Path path;
+        private final String[] header;
+        private long line = 2;  // the line being parsed - after the header
+
+        CsvReader(Path path) throws IOException {
+            super(path);
+            this.path = path;
+            ensure(MAX_LINE);
+            int start = window.position();
+            while (window.hasRemaining() && window.get() != '\n') {
+                // the header line
+            }
+            var bytes = new byte[window.position() - start];
+            window.get(start, bytes);
+            header = new String(bytes, StandardCharsets.UTF_8).strip().split("\\s*,\\s*");
+        }
+
+        @Override
+        public String[] header() {
+            return header;
+        }
+
+        RuntimeException error(String what) {
+            return new RuntimeException(String.format("%s in line %d of %s", what, line, path));
+        }
+
+        private int peek() {
+            return window.hasRemaining() ? window.get(window.position()) : -1;
+        }
+
+        private void skipSpaces() {
+            int c;
+            while ((c = peek()) == ' ' || c == '\t') {
+                window.get();
+            }
+        }
+
+        @Override
+        public int read(int[] slotOf, float[][] columns, int maxRows) throws IOException {
+            int rows = 0;
+            while (rows < maxRows) {
+                ensure(MAX_LINE);
+                int c;
+                while ((c = peek()) == '\n' || c == '\r') {  // empty lines
+                    line += c == '\n' ? 1 : 0;
+                    window.get();
+                }
+                if (c < 0) {
+                    break;
+                }
+                for (int col = 0; col < slotOf.length; col++) {
+                    skipSpaces();
+                    float value = parseNumber();
+                    if (slotOf[col] >= 0) {
+                        columns[slotOf[col]][rows] = value;
+                    }
+                    skipSpaces();
+                    c = peek();
+                    boolean last = col == slotOf.length - 1;
+                    if (last ? (c >= 0 && c != '\n' && c != '\r') : c != ',') {
+                        throw error(String.format("Expecting %d columns", slotOf.length));
+                    }
+                    if (!last || c >= 0) {
+                        window.get();  // the ',' or the end of the line
+                    }
+                }
+                if (peek() == '\n') {  // after a '\r'
+                    window.get();
+                }
+                if (!window.hasRemaining() && position() < size) {
+                    throw error(String.format("Line longer than %d bytes", MAX_LINE));
+                }
+                line++;
+                rows++;
+            }
+            return rows;
+        }
+
+        /**
+         * Short decimals - up to 7 digits and 10 after the point - are exact in a float, and so are the powers
+         * of ten dividing them, so one float division gives the correctly rounded value.
+         * Anything else (exponents, long numbers, NaN) goes to Float.parseFloat.
+         */
+        float parseNumber() {
+            int start = window.position();
+            int c = peek();
+            boolean negative = c == '-';
+            if (c == '-' || c == '+') {
+                window.get();
+            }
+            int mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            while (ArithParser.isDigit(c = peek()) && digits < 8) {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                window.get();
+            }
+            if (c == '.') {
+                window.get();
+                while (ArithParser.isDigit(c = peek()) && digits < 8) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    scale++;
+                    window.get();
+                }
+            }
+            if (digits == 0 || digits > 7 || scale >= POW10.length || (c != ',' && c != '\n' && c != '\r'
+                    && c != ' ' && c != '\t' && c >= 0)) {
+                return parseSlow(start);
+            }
+            float value = scale == 0 ? mantissa : mantissa / POW10[scale];
+            return negative ? -value : value;
+        }
+
+        private float parseSlow(int start) {
+            window.position(start);
+            int c;
+            while ((c = peek()) >= 0 && c != ',' && c != '\n' && c != '\r' && c != ' ' && c != '\t') {
+                window.get();
+            }
+            var bytes = new byte[window.position() - start];
+            window.get(start, bytes);
+            var text = new String(bytes, StandardCharsets.US_ASCII);
+            try {
+                return Float.parseFloat(text);
+            } catch (NumberFormatException e) {
+                throw error("Bad number '" + text + "'");
+            }
+        }
+    }
+
+    static final class BinaryReader extends MappedInput implements ColumnReader {
+        private final Path path;
+        private final String[] header;
+        private int blockRows = 0;
+        private int rowInBlock = 0;
+        private int blockStart;  // in the window - where the block's first column starts
+
+        BinaryReader(Path path) throws IOException {
+            super(path);
+            this.path = path;
+            try {
+                if (window.getInt() != MAGIC) {
+                    throw new RuntimeException("Not a column file: " + path);
+                }
+                short version = window.getShort();
+                if (version != VERSION) {
+                    throw new RuntimeException(String.format("Unsupported column file version %d in %s", version, path));
+                }
+                header = new String[window.getShort()];
+                for (int i = 0; i < header.length; i++) {
+                    header[i] = ArithIntCode.getString(window);
+                }
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new RuntimeException("Truncated or corrupt column file: " + path, e);
+            }
+        }
+
+        @Override
+        public String[] header() {
+            return header;
+        }
+
+        @Override
+        public int read(int[] slotOf, float[][] columns, int maxRows) throws IOException {
+            int rows = 0;
+            while (rows < maxRows) {
+                if (rowInBlock == blockRows) {
+                    if (position() == size) {
+                        break;
+                    }
+                    ensure(Integer.BYTES);
+                    blockRows = window.getInt();
+                    long blockBytes = (long) blockRows * header.length * Float.BYTES;
+                    if (blockRows < 0 || blockBytes > Integer.MAX_VALUE || position() + blockBytes > size) {
+                        throw new RuntimeException("Truncated or corrupt column file: " + path);
+                    }
+                    ensure((int) blockBytes);
+                    blockStart = window.position();
+                    rowInBlock = 0;
+                }
+                int count = Math.min(maxRows - rows, blockRows - rowInBlock);
+                for (int col = 0; col < header.length; col++) {
+                    if (slotOf[col] >= 0) {
+                        int offset = blockStart + (col * blockRows + rowInBlock) * Float.BYTES;
+                        window.slice(offset, count * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                                .asFloatBuffer().get(columns[slotOf[col]], rows, count);
+                    }
+                }
+                rowInBlock += count;
+                rows += count;
+                if (rowInBlock == blockRows) {
+                    window.position(blockStart + blockRows * header.length * Float.BYTES);
+                }
+            }
+            return rows;
+        }
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    static final class CsvWriter implements ColumnWriter {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+        CsvWriter(WritableByteChannel channel, String[] header) throws IOException {
+            this.channel = channel;
+            buffer.put((String.join(",", header) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void write(float[][] columns, int rows) throws IOException {
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < columns.length; col++) {
+                    if (buffer.remaining() < 32) {  // longer than any float and a separator
+                        writeFully(channel, buffer);
+                    }
+                    var text = Float.toString(columns[col][row]);
+                    for (int i = 0; i < text.length(); i++) {
+                        buffer.put((byte) text.charAt(i));
+                    }
+                    buffer.put((byte) (col == columns.length - 1 ? '\n' : ','));
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writeFully(channel, buffer);
+        }
+    }
+
+    static final class BinaryWriter implements ColumnWriter {
+        private final WritableByteChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        BinaryWriter(WritableByteChannel channel, String[] header) throws IOException {
+            this.channel = channel;
+            buffer.putInt(MAGIC);
+            buffer.putShort(VERSION);
+            buffer.putShort((short) header.length);
+            for (var name : header) {
+                ArithIntCode.putString(buffer, name);
+            }
+            writeFully(channel, buffer);
+        }
+
+        @Override
+        public void write(float[][] columns, int rows) throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            int size = Integer.BYTES + columns.length * rows * Float.BYTES;
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.putInt(rows);
+            for (var column : columns) {
+                buffer.asFloatBuffer().put(column, 0, rows);
+                buffer.position(buffer.position() + rows * Float.BYTES);
+            }
+            writeFully(channel, buffer);
+        }
+    }
+
+    static ColumnReader openReader(Path path, Format format) throws IOException {
+        return format == Format.CSV ? new CsvReader(path) : new BinaryReader(path);
+    }
+
+    static ColumnWriter newWriter(WritableByteChannel channel, Format format, String[] header) throws IOException {
+        return format == Format.CSV ? new CsvWriter(channel, header) : new BinaryWriter(channel, header);
+    }
+
+    /**
+     * @return for every file column - the paramIndex slot it is bound to, or -1 if the formula doesn't use it
+     */
+    static int[] bind(String[] paramIndex, String[] header) {
+        var slotOf = new int[header.length];
+        Arrays.fill(slotOf, -1);
+        for (int slot = 0; slot < paramIndex.length; slot++) {
+            int col = Arrays.asList(header).indexOf(paramIndex[slot]);
+            if (col < 0) {
+                throw new RuntimeException("Missing column " + paramIndex[slot]);
+            }
+            slotOf[col] = slot;
+        }
+        return slotOf;
+    }
+
+    interface Stage {
+        void run() throws Exception;
+    }
+
+    /**
+     * Starts a pipeline stage on its own thread - however it ends, END goes down the pipeline after it
+     */
+    static Thread startStage(String name, Stage stage, BlockingQueue<Batch> downstream,
+                             AtomicReference<Throwable> failure) {
+        var thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                // the pipeline was stopped
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                downstream.offer(END);  // never blocks - there is room for every batch and END
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public static Stats evaluate(ExecutableCode exec, Path input, Format inputFormat,
+                                 WritableByteChannel output, Format outputFormat, int batchRows) throws IOException {
+        long startTime = System.nanoTime();
+        try (var reader = openReader(input, inputFormat)) {
+            var slotOf = bind(exec.paramIndex(), reader.header());
+            var writer = newWriter(output, outputFormat, new String[]{RESULT_COLUMN});
+            var free = new ArrayBlockingQueue<Batch>(POOL_SIZE);
+            for (int i = 0; i < POOL_SIZE; i++) {
+                free.add(new Batch(exec.paramIndex().length, batchRows));
+            }
+            var parsed = new ArrayBlockingQueue<Batch>(POOL_SIZE + 1);
+            var evaluated = new ArrayBlockingQueue<Batch>(POOL_SIZE + 1);
+            var failure = new AtomicReference<Throwable>();
+            var busyNanos = new long[3];  // each written by one stage, read after joining it
+
+            var readerThread = startStage("formula-stream-reader", () -> {
+                for (;;) {
+                    var batch = free.take();
+                    long start = System.nanoTime();
+                    batch.rows = reader.read(slotOf, batch.columns, batchRows);
+                    busyNanos[0] += System.nanoTime() - start;
+                    if (batch.rows == 0) {
+                        return;
+                    }
+                    parsed.put(batch);
+                }
+            }, parsed, failure);
+            var evalThread = startStage("formula-stream-eval", () -> {
+                var stack = ArithVector.newStack(exec);
+                for (;;) {
+                    var batch = parsed.take();
+                    if (batch == END) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    ArithVector.runBatch(exec, batch.columns, batch.result[0], 0, batch.rows, stack);
+                    busyNanos[1] += System.nanoTime() - start;
+                    evaluated.put(batch);
+                }
+            }, evaluated, failure);
+
+            long rows = 0;
+            try {
+                for (;;) {
+                    var batch = evaluated.take();
+                    if (batch == END) {
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    writer.write(batch.result, batch.rows);
+                    busyNanos[2] += System.nanoTime() - start;
+                    rows += batch.rows;
+                    free.put(batch);
+                }
+                writer.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while evaluating " + input);
+            } finally {
+                // stops the other stages if the writer failed - they are done already otherwise
+                readerThread.interrupt();
+                evalThread.interrupt();
+                joinUninterruptibly(readerThread);
+                joinUninterruptibly(evalThread);
+            }
+            var error = failure.get();
+            if (error instanceof IOException e) {
+                throw e;
+            } else if (error instanceof RuntimeException e) {
+                throw e;
+            } else if (error != null) {
+                throw new RuntimeException(error);
+            }
+            return new Stats(rows, System.nanoTime() - startTime, busyNanos[0], busyNanos[1], busyNanos[2]);
+        }
+    }
+
+    /**
+     * Evaluates the formula over the input file into the output file - the format of each is by its extension
+     */
+    public static Stats evaluate(ExecutableCode exec, Path input, Path output) throws IOException {
+        try (var channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            return evaluate(exec, input, Format.of(input), channel, Format.of(output), BATCH_ROWS);
+        }
+    }
+
+    static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes whole columns to a file - all the columns must have the same length
+     */
+    public static void saveColumns(Path path, Format format, Map<String, float[]> namedColumns) throws IOException {
+        var columns = namedColumns.values().toArray(new float[0][]);
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var writer = newWriter(channel, format, namedColumns.keySet().toArray(new String[0]));
+            int rows = columns.length == 0 ? 0 : columns[0].length;
+            var block = new float[columns.length][];
+            for (int start = 0; start < rows; start += BATCH_ROWS) {
+                int count = Math.min(BATCH_ROWS, rows - start);
+                for (int col = 0; col < columns.length; col++) {
+                    block[col] = Arrays.copyOfRange(columns[col], start, start + count);
+                }
+                writer.write(block, count);
+            }
+            writer.finish();
+        }
+    }
+
+    /**
+     * Reads a whole (small) file to memory - column name --> its values, in the file's order
+     */
+    public static Map<String, float[]> loadColumns(Path path, Format format) throws IOException {
+        try (var reader = openReader(path, format)) {
+            var header = reader.header();
+            var slotOf = new int[header.length];
+            Arrays.setAll(slotOf, i -> i);
+            var blocks = new ArrayList<float[][]>();
+            var rowCounts = new ArrayList<Integer>();
+            int rows;
+            do {
+                var block = new float[header.length][BATCH_ROWS];
+                rows = reader.read(slotOf, block, BATCH_ROWS);
+                blocks.add(block);
+                rowCounts.add(rows);
+            } while (rows > 0);
+            int total = rowCounts.stream().mapToInt(Integer::intValue).sum();
+            var result = new LinkedHashMap<String, float[]>();
+            for (int col = 0; col < header.length; col++) {
+                var column = new float[total];
+                int offset = 0;
+                for (int b = 0; b < blocks.size(); b++) {
+                    System.arraycopy(blocks.get(b)[col], 0, column, offset, rowCounts.get(b));
+                    offset += rowCounts.get(b);
+                }
+                result.put(header[col], column);
+            }
+            return result;
+        }
+    }
+
+    public static void testStream() throws IOException {
+        var exec = ArithOptimizer.optimize(compile("(x*x) + (2*x*y) + (y*y) - (x/(y+1))"));
+        int rows = 3 * 1000 + 17;  // some full batches and a partial one
+        var x = ArithVector.randomColumn(rows);
+        var y = new float[rows];
+        for (int row = 0; row < rows; row++) {
+            y[row] = (row % 200 - 100) / 8.0F;  // short decimals - the CSV fast path
+        }
+        var namedColumns = new LinkedHashMap<String, float[]>();
+        namedColumns.put("y", y);  // not in paramIndex order
+        namedColumns.put("unused", ArithVector.randomColumn(rows));
+        namedColumns.put("x", x);
+        var binder = new ParamBinder(exec);
+        var args = new float[exec.paramIndex().length];
+        var input = Files.createTempFile("columns", ".in");
+        var output = Files.createTempFile("columns", ".out");
+        try {
+            for (var inputFormat : Format.values()) {
+                saveColumns(input, inputFormat, namedColumns);
+                var loaded = loadColumns(input, inputFormat);
+                check(loaded.get("x")[rows - 1], x[rows - 1]);
+                for (var outputFormat : Format.values()) {
+                    try (var channel = FileChannel.open(output, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                        var stats = evaluate(exec, input, inputFormat, channel, outputFormat, 1000);
+                        check((float) stats.rows(), (float) rows);
+                    }
+                    var result = loadColumns(output, outputFormat).get(RESULT_COLUMN);
+                    check((float) result.length, (float) rows);
+                    for (int row = 0; row < rows; row++) {
+                        args[binder.slotOf("x")] = x[row];
+                        args[binder.slotOf("y")] = y[row];
+                        check(result[row], run(exec, args));
+                    }
+                }
+            }
+            // a column the formula needs is missing
+            var other = ArithOptimizer.optimize(compile("x+z"));
+            try {
+                evaluate(other, input, output);
+                throw new RuntimeException("ERROR - missing column was not reported");
+            } catch (RuntimeException e) {
+                if (!e.getMessage().equals("Missing column z")) {
+                    throw e;
+                }
+            }
+            Files.writeString(input, "x,y\n1,2\n3,oops\n");
+            try (var channel = FileChannel.open(output, StandardOpenOption.WRITE)) {
+                evaluate(exec, input, Format.CSV, channel, Format.CSV, 1000);
+                throw new RuntimeException("ERROR - bad number was not reported");
+            } catch (RuntimeException e) {
+                if (!e.getMessage().startsWith("Bad number 'oops' in line 3")) {
+                    throw e;
+                }
+            }
+        } finally {
+            Files.delete(input);
+            Files.delete(output);
+        }
+    }
+
+    public static void profileStream() throws IOException {
+        var exec = ArithOptimizer.optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        var input = Files.createTempFile("columns", ".bin");
+        var csvInput = Files.createTempFile("columns", ".csv");
+        var output = Files.createTempFile("result", ".bin");
+        try {
+            int rows = 10_000_000;
+            saveColumns(input, Format.BINARY, Map.of("x", ArithVector.randomColumn(rows)));
+            saveColumns(csvInput, Format.CSV, Map.of("x", ArithVector.randomColumn(rows / 5)));
+            for (int round = 0; round < 2; round++) {  // the first round also warms up the JIT
+                System.out.println("binary: " + evaluate(exec, input, output));
+                System.out.println("csv: " + evaluate(exec, csvInput, output));
+            }
+        } finally {
+            Files.delete(input);
+            Files.delete(csvInput);
+            Files.delete(output);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        testStream();
+        profileStream();
+    }
+}
@@ -0,0 +1,204 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * Runs one ExecutableCode over many rows at once.
+ * Instead of a stack of floats we keep a stack of columns - each stack slot holds CHUNK rows.
+ * Every opcode is then dispatched once per chunk (not once per row) and does its work
+ * with SIMD FloatVector lanes, with a plain scalar loop for the rows that don't fill a whole vector.
+ * NOTE: the Vector API is still incubating - compile and run with --add-modules jdk.incubator.vector
+ */
+public class ArithVector {
+    static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    // Rows evaluated together - small enough for the stack columns to stay in the L1/L2 cache
+    static final int CHUNK = 1024;
+
+    /**
+     * Orders the named columns by exec.paramIndex - columns[i] holds the values of paramIndex[i]
+     */
+    public static float[][] bindColumns(ExecutableCode exec, Map<String, float[]> namedColumns) {
+        var columns = new float[exec.paramIndex().length][];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = namedColumns.get(exec.paramIndex()[i]);
+            if (columns[i] == null) {
+                throw new RuntimeException("Missing column " + exec.paramIndex()[i]);
+            }
+        }
+        return columns;
+    }
+
+    public static void runBatch(ExecutableCode exec, float[][] columns, float[] result) {
+        runBatch(exec, columns, result, 0, result.length);
+    }
+
+    /**
+     * Evaluates rows [from, to) - result[row] = run(exec, {columns[0][row], columns[1][row], ...})
+     */
+    public static void runBatch(ExecutableCode exec, float[][] columns, float[] result, int from, int to) {
+        runBatch(exec, columns, result, from, to, newStack(exec));
+    }
+
+    /**
+     * The stack of columns runBatch works on - a caller running many batches can allocate it once
+     */
+    static float[][] newStack(ExecutableCode exec) {
+        return new float[exec.frameSize()][CHUNK];
+    }
+
+    static void runBatch(ExecutableCode exec, float[][] columns, float[] result, int from, int to,
+                         float[][] stack) {
+        if (columns.length < exec.paramIndex().length) {
+            throw new RuntimeException(String.format(
+                    "Expecting %d columns, got %d", exec.paramIndex().length, columns.length));
+        }
+        for (var column : columns) {
+            if (column.length < to) {
+                throw new RuntimeException(String.format(
+                        "Column has %d rows, expecting at least %d", column.length, to));
+            }
+        }
+        for (int start = from; start < to; start += CHUNK) {
+            int rows = Math.min(CHUNK, to - start);
+            runChunk(exec.opCodes(), columns, stack, exec.maxStackDepth(), start, rows);
+            System.arraycopy(stack[0], 0, result, start, rows);
+        }
+    }
+
+    /**
+     * @param temps index of the first temp column in stack (temps are kept above the stack, like ArithCompile.run)
+     */
+    static void runChunk(float[] code, float[][] columns, float[][] stack, int temps, int start, int rows) {
+        int sp = 0;
+        float[] a;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch ((int) code[pc]) {
+                case NOOP:
+                    break;
+                case PUSH:
+                    Arrays.fill(stack[sp++], 0, rows, code[++pc]);
+                    break;
+                case PARAM:
+                    System.arraycopy(columns[(int) code[++pc]], start, stack[sp++], 0, rows);
+                    break;
+                case PLUS:
+                case MINUS:
+                case MUL:
+                case DIV:
+                    sp--;
+                    binaryOp((int) code[pc], stack[sp - 1], stack[sp], rows);
+                    break;
+                case SWAP:
+                    // only the column references move - not the rows
+                    a = stack[sp - 1];
+                    stack[sp - 1] = stack[sp - 2];
+                    stack[sp - 2] = a;
+                    break;
+                case DUP:
+                    System.arraycopy(stack[sp - 1], 0, stack[sp], 0, rows);
+                    sp++;
+                    break;
+                case ZERO:
+                    Arrays.fill(stack[sp++], 0, rows, 0.0F);
+                    break;
+                case ONE:
+                    Arrays.fill(stack[sp++], 0, rows, 1.0F);
+                    break;
+                case STORE:
+                    System.arraycopy(stack[sp - 1], 0, stack[temps + (int) code[++pc]], 0, rows);
+                    break;
+                case LOAD:
+                    System.arraycopy(stack[temps + (int) code[++pc]], 0, stack[sp++], 0, rows);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected value: " + (int) code[pc]);
+            }
+        }
+    }
+
+    /**
+     * next = next (op) top - for every row, like the scalar stack machine
+     */
+    static void binaryOp(int op, float[] next, float[] top, int rows) {
+        int i = 0;
+        int upperBound = SPECIES.loopBound(rows);
+        for (; i < upperBound; i += SPECIES.length()) {
+            var b = FloatVector.fromArray(SPECIES, next, i);
+            var a = FloatVector.fromArray(SPECIES, top, i);
+            var value = switch (op) {
+                case PLUS -> b.add(a);
+                case MINUS -> b.sub(a);
+                case MUL -> b.mul(a);
+                default -> b.div(a);
+            };
+            value.intoArray(next, i);
+        }
+        // scalar tail - the rows that don't fill a whole vector
+        for (; i < rows; i++) {
+            next[i] = switch (op) {
+                case PLUS -> next[i] + top[i];
+                case MINUS -> next[i] - top[i];
+                case MUL -> next[i] * top[i];
+                default -> next[i] / top[i];
+            };
+        }
+    }
+
+    public static float[] randomColumn(int rows) {
+        var rand = new Random(17);
+        var column = new float[rows];
+        for (int i = 0; i < rows; i++) {
+            column[i] = rand.nextFloat();
+        }
+        return column;
+    }
+
+    public static void testBatch() {
+        var exec = optimize(compile("(x*x) + (2*x*y) + (y*y) - (x/(y+1))"));
+        int rows = 3 * CHUNK + 7;  // some full chunks and a tail that is not a whole vector
+        var columns = bindColumns(exec, Map.of("x", randomColumn(rows), "y", randomColumn(rows + 5)));
+        var result = new float[rows];
+        runBatch(exec, columns, result);
+        var args = new float[columns.length];
+        for (int row = 0; row < rows; row++) {
+            for (int i = 0; i < args.length; i++) {
+                args[i] = columns[i][row];
+            }
+            check(result[row], run(exec, args));
+        }
+    }
+
+    public static void profileBatch() {
+        var exec = optimize(compile(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))"));
+        int rows = 10_000_000;
+        var x = randomColumn(rows);
+        var result = new float[rows];
+        var args = new float[1];
+        long startTime = System.nanoTime();
+        for (int row = 0; row < rows; row++) {
+            args[0] = x[row];
+            result[row] = run(exec, args);
+        }
+        System.out.println("row at a time msec = " + (System.nanoTime() - startTime) / 1_000_000);
+        var columns = new float[][]{x};
+        for (int repeat = 0; repeat < 3; repeat++) {  // the first rounds also warm up the JIT
+            startTime = System.nanoTime();
+            runBatch(exec, columns, result);
+            System.out.println("batch msec = " + (System.nanoTime() - startTime) / 1_000_000);
+        }
+    }
+
+    public static void main(String[] args) {
+        testBatch();
+        profileBatch();
+    }
+}
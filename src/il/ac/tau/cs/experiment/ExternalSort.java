@@ -0,0 +1,394 @@
+package il.ac.tau.cs.experiment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+/**
+ * Sorts more ints than fit in memory.
+ *    1. Runs - reads as many ints as the memory budget holds (less the I/O buffers), sorts them and spills them
+ *       to a temp file
+ *    2. Merge - merges the runs with MultiMerge.IntMerger, each run read through its own large buffer.
+ *       With more runs than maxFanIn (open files, or buffers that fit in the budget) it merges groups of
+ *       runs into longer runs first - as many passes as needed.
+ * The direct I/O buffers are allocated once per sort and reused for every run and every merge - direct memory
+ * is only freed by GC, so a buffer per run would take far more than the budget.
+ * Files (the input, the output and the runs) are raw little endian ints - 4 bytes per element, nothing else.
+ */
+public class ExternalSort {
+    /**
+     * @param mergePasses passes over the data after the runs were written - 0 if it all fit in memory
+     */
+    public record Stats(long elements, int runs, int mergePasses, long bytesSpilled) {}
+
+    static final int MIN_BUFFER = 64 * 1024;
+    static final int MAX_BUFFER = 8 * 1024 * 1024;
+
+    private final long memoryBudget;
+    private final int maxFanIn;
+    private final int bufferSize;  // per run being merged, and for the output
+    private final Path tempDir;
+
+    /**
+     * @param memoryBudget bytes - for a run and 2 buffers (input and output) while sorting, and for all
+     *                     the buffers while merging. At least 3 * MIN_BUFFER
+     * @param maxFanIn the most runs merged at once
+     */
+    public ExternalSort(long memoryBudget, int maxFanIn, Path tempDir) {
+        if (maxFanIn < 2) {
+            throw new RuntimeException(String.format("Fan-in must be at least 2, got %d", maxFanIn));
+        }
+        if (memoryBudget < 3L * MIN_BUFFER) {
+            throw new RuntimeException(String.format(
+                    "Memory budget must be at least %d bytes, got %d", 3L * MIN_BUFFER, memoryBudget));
+        }
+        int size = (int) Math.max(MIN_BUFFER, Math.min(MAX_BUFFER, memoryBudget / (maxFanIn + 1)));
+        this.bufferSize = size & ~(Integer.BYTES - 1);
+        this.memoryBudget = memoryBudget;
+        // fewer runs at once if that many buffers don't fit in the budget
+        this.maxFanIn = (int) Math.max(2, Math.min(maxFanIn, memoryBudget / bufferSize - 1));
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Reads the ints of a file (or a run) through one large buffer
+     */
+    static final class IntReader implements PrimitiveIterator.OfInt, Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private IntBuffer ints = IntBuffer.allocate(0);
+
+        IntReader(Path path, int bufferSize) throws IOException {
+            this(path, directBuffer(bufferSize));
+        }
+
+        /**
+         * @param buffer a direct buffer to read through - the reader owns it until it is closed
+         */
+        IntReader(Path path, ByteBuffer buffer) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.buffer = buffer.clear().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void fill() {
+            try {
+                buffer.clear();
+                // whole ints only - a read may stop in the middle of one
+                while ((buffer.position() == 0 || buffer.position() % Integer.BYTES != 0) && buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        if (buffer.position() % Integer.BYTES != 0) {
+                            throw new RuntimeException("Truncated int file - its size is not a multiple of 4");
+                        }
+                        break;
+                    }
+                }
+                buffer.flip();
+                ints = buffer.asIntBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!ints.hasRemaining()) {
+                fill();
+            }
+            return ints.hasRemaining();
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return ints.get();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes ints through one large buffer
+     */
+    static final class IntWriter {
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer;
+        private final IntBuffer ints;
+        private long written = 0;
+
+        IntWriter(WritableByteChannel channel, int bufferSize) {
+            this(channel, directBuffer(bufferSize));
+        }
+
+        IntWriter(WritableByteChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer.clear().order(ByteOrder.LITTLE_ENDIAN);
+            ints = this.buffer.asIntBuffer();
+        }
+
+        void write(int value) throws IOException {
+            if (!ints.hasRemaining()) {
+                flush();
+            }
+            ints.put(value);
+        }
+
+        void write(int[] values, int length) throws IOException {
+            for (int offset = 0; offset < length; ) {
+                if (!ints.hasRemaining()) {
+                    flush();
+                }
+                int count = Math.min(ints.remaining(), length - offset);
+                ints.put(values, offset, count);
+                offset += count;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.clear().limit(ints.position() * Integer.BYTES);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+            ints.clear();
+        }
+    }
+
+    static ByteBuffer directBuffer(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public Stats sort(PrimitiveIterator.OfInt input, WritableByteChannel output) throws IOException {
+        return sort(input, output, new ArrayList<>());
+    }
+
+    /**
+     * @param readBuffers direct buffers of bufferSize for reading runs - more are added as needed.
+     *                    The input may read through readBuffers[0] - it is reused only after the input ended
+     */
+    private Stats sort(PrimitiveIterator.OfInt input, WritableByteChannel output, List<ByteBuffer> readBuffers)
+            throws IOException {
+        List<Path> runs = new ArrayList<>();
+        var tempFiles = new ArrayList<Path>();  // everything spilled - deleted however the sort ends
+        var writeBuffer = directBuffer(bufferSize);  // for every run and every merge
+        try {
+            // the input's buffer and the output's come out of the budget
+            long runBytes = memoryBudget - 2L * bufferSize;
+            var run = new int[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, runBytes / Integer.BYTES))];
+            long elements = 0;
+            long spilled = 0;
+            for (;;) {
+                int length = 0;
+                while (length < run.length && input.hasNext()) {
+                    run[length++] = input.nextInt();
+                }
+                elements += length;
+                Arrays.sort(run, 0, length);
+                if (runs.isEmpty() && !input.hasNext()) {
+                    // it all fit in memory - no runs to merge
+                    var writer = new IntWriter(output, writeBuffer);
+                    writer.write(run, length);
+                    writer.flush();
+                    return new Stats(elements, 1, 0, 0);
+                }
+                if (length > 0) {
+                    runs.add(writeRun(run, length, writeBuffer));
+                    tempFiles.add(runs.getLast());
+                    spilled += (long) length * Integer.BYTES;
+                }
+                if (!input.hasNext()) {
+                    break;
+                }
+            }
+            run = null;  // the merge buffers need the memory now
+            int numRuns = runs.size();
+            int passes = 1;
+            while (runs.size() > maxFanIn) {
+                // merge groups of runs into longer runs - the groups about equal, so no run is merged again needlessly
+                int groups = (runs.size() + maxFanIn - 1) / maxFanIn;
+                var merged = new ArrayList<Path>();
+                for (int g = 0; g < groups; g++) {
+                    var group = runs.subList(g * runs.size() / groups, (g + 1) * runs.size() / groups);
+                    var path = Files.createTempFile(tempDir, "run", ".bin");
+                    tempFiles.add(path);
+                    merged.add(path);
+                    try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                        spilled += merge(group, channel, readBuffers, writeBuffer);
+                    }
+                    for (var done : group) {
+                        Files.delete(done);  // as early as possible - the disk holds the data about twice at most
+                    }
+                }
+                runs = merged;
+                passes++;
+            }
+            merge(runs, output, readBuffers, writeBuffer);
+            return new Stats(elements, numRuns, passes, spilled);
+        } finally {
+            for (var path : tempFiles) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Sorts a file of ints into another file
+     */
+    public Stats sort(Path input, Path output) throws IOException {
+        var readBuffers = new ArrayList<ByteBuffer>(List.of(directBuffer(bufferSize)));
+        try (var reader = new IntReader(input, readBuffers.getFirst());
+             var channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            return sort(reader, channel, readBuffers);
+        }
+    }
+
+    private Path writeRun(int[] run, int length, ByteBuffer writeBuffer) throws IOException {
+        var path = Files.createTempFile(tempDir, "run", ".bin");
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            var writer = new IntWriter(channel, writeBuffer);
+            writer.write(run, length);
+            writer.flush();
+        }
+        return path;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private long merge(List<Path> runs, WritableByteChannel output, List<ByteBuffer> readBuffers,
+                       ByteBuffer writeBuffer) throws IOException {
+        var readers = new ArrayList<IntReader>();
+        try {
+            for (var path : runs) {
+                if (readBuffers.size() == readers.size()) {
+                    readBuffers.add(directBuffer(bufferSize));
+                }
+                readers.add(new IntReader(path, readBuffers.get(readers.size())));
+            }
+            var writer = new IntWriter(output, writeBuffer);
+            var merger = new MultiMerge.IntMerger(readers);
+            while (merger.hasNext()) {
+                writer.write(merger.nextInt());
+            }
+            writer.flush();
+            return writer.written;
+        } finally {
+            for (var reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    static void writeInts(Path path, int[] values) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var writer = new IntWriter(channel, MIN_BUFFER);
+            writer.write(values, values.length);
+            writer.flush();
+        }
+    }
+
+    static int[] readInts(Path path) throws IOException {
+        try (var reader = new IntReader(path, MIN_BUFFER)) {
+            var values = new int[(int) (Files.size(path) / Integer.BYTES)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = reader.nextInt();
+            }
+            return values;
+        }
+    }
+
+    public static void testExternalSort() throws IOException {
+        var tempDir = Files.createTempDirectory("sort");
+        var input = tempDir.resolve("input.bin");
+        var output = tempDir.resolve("output.bin");
+        try {
+            var values = new Random(17).ints(1_000_003).toArray();
+            writeInts(input, values);
+            var expected = values.clone();
+            Arrays.sort(expected);
+            // 48K ints per run (the budget less 2 buffers) and 4 runs at a time - 21 runs, merged in 3 passes
+            var stats = new ExternalSort(5 * MIN_BUFFER, 4, tempDir).sort(input, output);
+            if (!Arrays.equals(readInts(output), expected) || stats.elements() != values.length) {
+                throw new RuntimeException("ERROR external sort output is wrong: " + stats);
+            }
+            if (stats.runs() != 21 || stats.mergePasses() != 3) {
+                throw new RuntimeException("ERROR unexpected runs or passes: " + stats);
+            }
+            // 16K ints per run - and the budget holds only 3 buffers, so 62 runs merge 2 at a time
+            stats = new ExternalSort(3 * MIN_BUFFER, 4, tempDir).sort(input, output);
+            if (!Arrays.equals(readInts(output), expected) || stats.runs() != 62 || stats.mergePasses() != 6) {
+                throw new RuntimeException("ERROR external sort with a small budget: " + stats);
+            }
+            // fits in memory
+            stats = new ExternalSort(16 * 1024 * 1024, 16, tempDir).sort(input, output);
+            if (!Arrays.equals(readInts(output), expected) || stats.mergePasses() != 0) {
+                throw new RuntimeException("ERROR in-memory sort: " + stats);
+            }
+            writeInts(input, new int[0]);
+            new ExternalSort(3 * MIN_BUFFER, 4, tempDir).sort(input, output);
+            if (Files.size(output) != 0) {
+                throw new RuntimeException("ERROR sorting an empty file");
+            }
+            try {
+                new ExternalSort(2 * MIN_BUFFER, 4, tempDir);
+                throw new RuntimeException("ERROR a budget smaller than the buffers was accepted");
+            } catch (RuntimeException e) {
+                if (!e.getMessage().startsWith("Memory budget")) {
+                    throw e;
+                }
+            }
+            try (var files = Files.list(tempDir)) {
+                if (files.count() != 2) {
+                    throw new RuntimeException("ERROR temp runs were not deleted");
+                }
+            }
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+            Files.delete(tempDir);
+        }
+    }
+
+    public static void timing() throws IOException {
+        var tempDir = Files.createTempDirectory("sort");
+        var input = tempDir.resolve("input.bin");
+        var output = tempDir.resolve("output.bin");
+        try {
+            writeInts(input, new Random(17).ints(20_000_000).toArray());
+            for (int fanIn : new int[]{64, 4}) {
+                var sorter = new ExternalSort(16 * 1024 * 1024, fanIn, tempDir);
+                long start = System.nanoTime();
+                var stats = sorter.sort(input, output);
+                System.out.printf("fan-in %d: %s msec = %d%n", fanIn, stats, (System.nanoTime() - start) / 1_000_000);
+            }
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+            Files.delete(tempDir);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        testExternalSort();
+        timing();
+    }
+}
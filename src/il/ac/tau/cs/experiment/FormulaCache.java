@@ -0,0 +1,139 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the optimized ExecutableCode of recently used formulas - so a formula we have seen
+ * is not parsed, compiled and optimized again.
+ * The key is the normalized source code (see ArithParser.normalize) so "x + 1" and "x+1" share an entry.
+ * Eviction is LRU - a LinkedHashMap in access order drops its eldest entry when it grows past maxSize.
+ * The map is guarded by its own lock, held only for the lookup itself - compiling a missing
+ * formula happens outside the lock, so a slow compile doesn't block hits on other formulas.
+ */
+public class FormulaCache {
+    public record Stats(long hits, long misses, long evictions, int size) {}
+
+    private final int maxSize;
+    private final LinkedHashMap<String, ExecutableCode> programs;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public FormulaCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.programs = new LinkedHashMap<>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ExecutableCode> eldest) {
+                if (size() > FormulaCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public ExecutableCode get(String sourceCode) {
+        var key = ArithParser.normalize(sourceCode);
+        ExecutableCode exec;
+        synchronized (programs) {
+            exec = programs.get(key);
+        }
+        if (exec != null) {
+            hits.increment();
+            return exec;
+        }
+        misses.increment();
+        // Two threads may compile the same new formula at once - the first one stored wins
+        exec = ArithOptimizer.optimize(ArithCompile.compile(key));
+        synchronized (programs) {
+            var existing = programs.putIfAbsent(key, exec);
+            return existing != null ? existing : exec;
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public Stats stats() {
+        int size;
+        synchronized (programs) {
+            size = programs.size();
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+
+    public void clear() {
+        synchronized (programs) {
+            programs.clear();
+        }
+    }
+
+    public static void testCache() throws InterruptedException {
+        var cache = new FormulaCache(2);
+        var exec = cache.get("x + 1");
+        if (cache.get("x+1") != exec) {
+            throw new RuntimeException("ERROR - normalized source should hit the cache");
+        }
+        cache.get("x + 2");
+        cache.get("x+1");  // now "x+2" is the least recently used
+        cache.get("x+3");  // evicts "x+2"
+        var stats = cache.stats();
+        if (stats.hits() != 2 || stats.misses() != 3 || stats.evictions() != 1 || stats.size() != 2) {
+            throw new RuntimeException("ERROR unexpected cache stats " + stats);
+        }
+        if (cache.get("x+1") != exec) {
+            throw new RuntimeException("ERROR - recently used formula should not be evicted");
+        }
+
+        // Many threads over more formulas than fit - the cache must stay bounded and consistent
+        var shared = new FormulaCache(50);
+        var pool = Executors.newFixedThreadPool(8);
+        var tasks = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    int n = (i * 31 + seed) % 80;
+                    var formula = shared.get("x * " + n);
+                    ArithCompile.check(ArithCompile.runNoAlloc(formula, Map.of("x", 2.0F)), 2.0F * n);
+                }
+            }));
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+            pool.shutdownNow();
+            throw new RuntimeException("ERROR - cache threads did not finish in time");
+        }
+        for (var task : tasks) {
+            try {
+                task.get();  // a failed check in a thread fails the test
+            } catch (ExecutionException e) {
+                throw new RuntimeException("ERROR in a cache thread", e.getCause());
+            }
+        }
+        stats = shared.stats();
+        if (stats.size() > 50 || stats.hits() + stats.misses() != 80_000) {
+            throw new RuntimeException("ERROR unexpected cache stats " + stats);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        testCache();
+        ArithCompile.profileInterpreter();
+        System.out.println(ArithCompile.formulaCache.stats());
+    }
+}
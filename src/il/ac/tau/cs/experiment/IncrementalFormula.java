@@ -0,0 +1,232 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+import il.ac.tau.cs.experiment.ArithOptimizer.Dag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * A formula that remembers the value of every sub-expression - so when one parameter changes
+ * only the sub-expressions that depend on it are calculated again.
+ * The sub-expressions are the nodes of the optimizer's DAG (see ArithOptimizer), kept in topological order.
+ * Recalculation also stops early - a node whose value came out the same as before
+ * does not make the nodes above it dirty.
+ * Not thread safe - each simulation thread should have its own IncrementalFormula.
+ */
+public class IncrementalFormula {
+    /**
+     * @param recomputed how many operator nodes were calculated again for this update
+     */
+    public record Update(float value, int recomputed) {}
+
+    private final String[] paramIndex;
+    private final int[] ops;    // per node: PUSH, PARAM or an operator
+    private final int[] left;   // per node: index of the left operand (operators only)
+    private final int[] right;
+    private final float[] values;
+    private final boolean[] changed;
+    private final int[] paramNode;   // per param: its node, or -1 if the formula doesn't use it
+    private final int[][] affected;  // per param: the operator nodes depending on it - in topological order
+    private final int root;
+
+    public IncrementalFormula(ExecutableCode exec, float[] args) {
+        var dag = new Dag();
+        var rootNode = dag.addCode(exec);
+        var nodes = dag.reachable(rootNode);
+        paramIndex = dag.paramIndex.toArray(new String[0]);
+        int size = nodes.size();
+        ops = new int[size];
+        left = new int[size];
+        right = new int[size];
+        values = new float[size];
+        changed = new boolean[size];
+        paramNode = new int[paramIndex.length];
+        Arrays.fill(paramNode, -1);
+        var localIndex = new int[dag.nodes.size()];
+        for (int i = 0; i < size; i++) {
+            var node = nodes.get(i);
+            localIndex[node.id] = i;
+            ops[i] = node.op;
+            switch (node.op) {
+                case PUSH -> values[i] = node.value;
+                case PARAM -> {
+                    paramNode[node.param] = i;
+                    values[i] = args[node.param];
+                }
+                default -> {
+                    left[i] = localIndex[node.left.id];
+                    right[i] = localIndex[node.right.id];
+                    values[i] = calc(i);
+                }
+            }
+        }
+        root = localIndex[rootNode.id];
+
+        affected = new int[paramIndex.length][];
+        var depends = new boolean[size];
+        for (int p = 0; p < paramIndex.length; p++) {
+            var list = new ArrayList<Integer>();
+            Arrays.fill(depends, false);
+            if (paramNode[p] >= 0) {
+                depends[paramNode[p]] = true;
+            }
+            for (int i = 0; i < size; i++) {
+                if (ops[i] != PUSH && ops[i] != PARAM && (depends[left[i]] || depends[right[i]])) {
+                    depends[i] = true;
+                    list.add(i);
+                }
+            }
+            affected[p] = list.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    public IncrementalFormula(String sourceCode, Map<String, Float> params) {
+        this(compile(sourceCode), params);
+    }
+
+    private IncrementalFormula(ExecutableCode exec, Map<String, Float> params) {
+        this(exec, new ParamBinder(exec).bind(params));
+    }
+
+    private float calc(int node) {
+        float leftVal = values[left[node]];
+        float rightVal = values[right[node]];
+        return switch (ops[node]) {
+            case PLUS -> leftVal + rightVal;
+            case MINUS -> leftVal - rightVal;
+            case MUL -> leftVal * rightVal;
+            case DIV -> leftVal / rightVal;
+            default -> throw new IllegalStateException("Unexpected value: " + ops[node]);
+        };
+    }
+
+    /**
+     * Recalculates a node if one of its operands changed
+     * @return 1 if it was recalculated
+     */
+    private int recompute(int node) {
+        if (!changed[left[node]] && !changed[right[node]]) {
+            return 0;
+        }
+        float value = calc(node);
+        if (Float.floatToRawIntBits(value) != Float.floatToRawIntBits(values[node])) {
+            values[node] = value;
+            changed[node] = true;
+        }
+        return 1;
+    }
+
+    public String[] paramIndex() {
+        return paramIndex;
+    }
+
+    public float value() {
+        return values[root];
+    }
+
+    public Update update(String paramName, float value) {
+        int p = slotOf(paramName);
+        int node = paramNode[p];
+        if (node < 0 || Float.floatToRawIntBits(values[node]) == Float.floatToRawIntBits(value)) {
+            return new Update(value(), 0);
+        }
+        values[node] = value;
+        changed[node] = true;
+        int recomputed = 0;
+        for (var dependent : affected[p]) {
+            recomputed += recompute(dependent);
+        }
+        changed[node] = false;
+        for (var dependent : affected[p]) {
+            changed[dependent] = false;
+        }
+        return new Update(value(), recomputed);
+    }
+
+    /**
+     * Changes several parameters at once - each dirty node is recalculated once, not once per parameter
+     */
+    public Update update(Map<String, Float> params) {
+        for (var entry : params.entrySet()) {
+            int node = paramNode[slotOf(entry.getKey())];
+            float value = entry.getValue();
+            if (node >= 0 && Float.floatToRawIntBits(values[node]) != Float.floatToRawIntBits(value)) {
+                values[node] = value;
+                changed[node] = true;
+            }
+        }
+        int recomputed = 0;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] != PUSH && ops[i] != PARAM) {
+                recomputed += recompute(i);
+            }
+        }
+        Arrays.fill(changed, false);
+        return new Update(value(), recomputed);
+    }
+
+    private int slotOf(String paramName) {
+        for (int i = 0; i < paramIndex.length; i++) {
+            if (paramIndex[i].equals(paramName)) {
+                return i;
+            }
+        }
+        throw new RuntimeException("Unknown parameter " + paramName);
+    }
+
+    public static void testIncremental() {
+        var source = "((a*a) + (b*c)) * ((a/d) - (c*c*c)) + (d*d*d*d/(2*3))";
+        var exec = ArithOptimizer.optimize(compile(source));
+        var rand = new Random(17);
+        var args = new ParamBinder(exec).bind(Map.of("a", 1.0F, "b", 2.0F, "c", 3.0F, "d", 4.0F)).clone();
+        var formula = new IncrementalFormula(exec, args);
+        check(formula.value(), run(exec, args));
+        for (int i = 0; i < 1000; i++) {
+            int p = rand.nextInt(args.length);
+            args[p] = rand.nextFloat() + 0.5F;
+            var update = formula.update(exec.paramIndex()[p], args[p]);
+            check(update.value(), run(exec, args));
+        }
+        // d only feeds a/d and the d^4 term - the rest of the formula keeps its cached values
+        var update = formula.update("d", 7.0F);
+        if (update.recomputed() == 0 || update.recomputed() >= formula.ops.length / 2) {
+            throw new RuntimeException("ERROR - unexpected number of recomputed nodes " + update.recomputed());
+        }
+        if (formula.update("d", 7.0F).recomputed() != 0) {  // same value - nothing to do
+            throw new RuntimeException("ERROR - recomputed although nothing changed");
+        }
+        args = new ParamBinder(exec).bind(Map.of("a", 2.0F, "b", 1.0F, "c", 1.0F, "d", 1.0F));
+        check(formula.update(Map.of("a", 2.0F, "b", 1.0F, "c", 1.0F, "d", 1.0F)).value(), run(exec, args));
+    }
+
+    public static void main(String[] args) {
+        testIncremental();
+        // A simulation loop - only t changes between evaluations
+        var source = "(a*a*a) + (b*b/(c+1)) + (a*b*c/(d+e)) + (e*e*e*e) + (t*t/2)";
+        var params = Map.of("a", 1.5F, "b", 2.0F, "c", 0.5F, "d", 3.0F, "e", 1.1F, "t", 0.0F);
+        var formula = new IncrementalFormula(source, params);
+        var exec = ArithOptimizer.optimize(compile(source));
+        var simArgs = new ParamBinder(exec).bind(params);
+        var t = new float[]{0.0F};
+        int tSlot = new ParamBinder(exec).slotOf("t");
+        long[] recomputed = {0};
+        ArithInterpreter.timeIt(() -> {
+            t[0] += 0.001F;
+            recomputed[0] += formula.update("t", t[0]).recomputed();
+        });
+        System.out.printf("average recomputed nodes %.2f of %d operator nodes%n",
+                recomputed[0] / 1_000_000.0,
+                ArithRegisterVM.compile(exec).code().length / ArithRegisterVM.INSTRUCTION_SIZE);
+        t[0] = 0.0F;
+        ArithInterpreter.timeIt(() -> {
+            t[0] += 0.001F;
+            simArgs[tSlot] = t[0];
+            ArithCompile.run(exec, simArgs);
+        });
+    }
+}
@@ -2,7 +2,12 @@ package il.ac.tau.cs.experiment;
 
 import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class MultiMerge {
     // Franji's version  (63 lines)
@@ -191,7 +196,609 @@ public class MultiMerge {
         }
     }
 
+    // Loser tree (tournament tree) - about log2(k) comparisons per element, for merging hundreds or thousands of runs.
+    // Every internal node remembers the loser of the match played there, the overall winner is kept aside.
+    // After the winner's source advances only the matches on the path from its leaf to the root are replayed
+    // - against the losers stored there, one comparison per level.
+    public static class LoserTreeMerger<T> implements Iterator<T> {
+        private final Iterator<? extends T>[] sources;
+        private final Comparator<? super T> comparator;
+        private final Object[] heads;         // by source
+        private final boolean[] exhausted;    // by source - an exhausted source loses every match
+        private final int[] losers;           // internal nodes 1..k-1 - node i plays children 2i and 2i+1,
+                                              // source i is the leaf k+i
+        private int winner;
+
+        @SuppressWarnings("unchecked")
+        public LoserTreeMerger(List<? extends Iterator<? extends T>> iterators, Comparator<? super T> comparator) {
+            this.sources = (Iterator<? extends T>[]) iterators.toArray(new Iterator<?>[0]);
+            this.comparator = comparator;
+            int k = sources.length;
+            heads = new Object[k];
+            exhausted = new boolean[k];
+            for (int i = 0; i < k; i++) {
+                advance(i);
+            }
+            losers = new int[Math.max(k, 1)];
+            // the initial tournament, bottom up - winners[node] is the winner of node's subtree
+            var winners = new int[2 * k];
+            for (int i = 0; i < k; i++) {
+                winners[k + i] = i;
+            }
+            for (int node = k - 1; node >= 1; node--) {
+                int left = winners[2 * node];
+                int right = winners[2 * node + 1];
+                boolean leftWins = beats(left, right);
+                winners[node] = leftWins ? left : right;
+                losers[node] = leftWins ? right : left;
+            }
+            winner = k == 0 ? -1 : k == 1 ? 0 : winners[1];
+        }
+
+        public static <T extends Comparable<? super T>> LoserTreeMerger<T> of(List<? extends Iterator<? extends T>> iterators) {
+            return new LoserTreeMerger<>(iterators, Comparator.naturalOrder());
+        }
+
+        private void advance(int source) {
+            if (sources[source].hasNext()) {
+                heads[source] = sources[source].next();
+            } else {
+                heads[source] = null;
+                exhausted[source] = true;
+            }
+        }
+
+        /**
+         * Equal heads - the lower source index wins, so the merge is stable
+         */
+        @SuppressWarnings("unchecked")
+        private boolean beats(int a, int b) {
+            if (exhausted[a] || exhausted[b]) {
+                return !exhausted[a];
+            }
+            int c = comparator.compare((T) heads[a], (T) heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return winner >= 0 && !exhausted[winner];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var value = (T) heads[winner];
+            advance(winner);
+            int current = winner;
+            for (int node = (winner + sources.length) / 2; node >= 1; node /= 2) {
+                if (beats(losers[node], current)) {
+                    int loser = current;
+                    current = losers[node];
+                    losers[node] = loser;
+                }
+            }
+            winner = current;
+            return value;
+        }
+    }
+
+    // Merge-reduce - for compacting sorted key/value runs (like an LSM tree does).
+    // Entries with equal keys, from any of the runs, come out as one entry - their values combined by a reducer.
+    // The runs are given oldest first, and the loser tree is stable - so the reducer sees the values oldest first.
+    // Streaming - it keeps the loser tree and one entry of look-ahead, whatever the length of the runs.
+    public static class MergeReduceIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final LoserTreeMerger<Map.Entry<K, V>> merger;
+        private final Comparator<? super K> keyComparator;
+        private final BinaryOperator<V> reducer;
+        private final Predicate<? super V> isTombstone;
+        private Map.Entry<K, V> lookAhead;  // the first entry of the next key, or null
+        private Map.Entry<K, V> nextEntry;  // reduced, and not a tombstone - or null if not found yet
+
+        /**
+         * @param reducer (older value, newer value) --> the combined value
+         * @param isTombstone combined values to drop (e.g. a deletion marker) - or null to keep them all
+         */
+        public MergeReduceIterator(List<? extends Iterator<? extends Map.Entry<K, V>>> runs,
+                                   Comparator<? super K> keyComparator, BinaryOperator<V> reducer,
+                                   Predicate<? super V> isTombstone) {
+            this.merger = new LoserTreeMerger<>(runs, Map.Entry.comparingByKey(keyComparator));
+            this.keyComparator = keyComparator;
+            this.reducer = reducer;
+            this.isTombstone = isTombstone;
+            lookAhead = merger.hasNext() ? merger.next() : null;
+        }
+
+        /**
+         * The newest value of every key - with newer runs later in the list
+         */
+        public static <V> BinaryOperator<V> newestWins() {
+            return (older, newer) -> newer;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextEntry == null && lookAhead != null) {
+                K key = lookAhead.getKey();
+                V value = lookAhead.getValue();
+                lookAhead = null;
+                while (merger.hasNext()) {
+                    var entry = merger.next();
+                    if (keyComparator.compare(key, entry.getKey()) != 0) {
+                        lookAhead = entry;
+                        break;
+                    }
+                    value = reducer.apply(value, entry.getValue());
+                }
+                if (isTombstone == null || !isTombstone.test(value)) {
+                    nextEntry = new AbstractMap.SimpleImmutableEntry<>(key, value);
+                }
+            }
+            return nextEntry != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var entry = nextEntry;
+            nextEntry = null;
+            return entry;
+        }
+    }
+
+    // Primitive mergers - no boxing, no compareTo and no allocation per element.
+    // A binary min-heap of source indices, keyed by each source's current head in a primitive array.
+    public static class IntMerger implements PrimitiveIterator.OfInt {
+        private final PrimitiveIterator.OfInt[] sources;
+        private final int[] heads;  // by source
+        private final int[] heap;   // source indices - heads[heap[0]] is the smallest
+        private int size = 0;
+
+        public IntMerger(List<? extends PrimitiveIterator.OfInt> sources) {
+            this.sources = sources.toArray(new PrimitiveIterator.OfInt[0]);
+            heads = new int[this.sources.length];
+            heap = new int[this.sources.length];
+            for (int i = 0; i < this.sources.length; i++) {
+                if (this.sources[i].hasNext()) {
+                    heads[i] = this.sources[i].nextInt();
+                    heap[size++] = i;
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(heap, heads, size, i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        @Override
+        public int nextInt() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            int source = heap[0];
+            int value = heads[source];
+            if (sources[source].hasNext()) {
+                heads[source] = sources[source].nextInt();
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(heap, heads, size, 0);
+            return value;
+        }
+    }
+
+    public static class LongMerger implements PrimitiveIterator.OfLong {
+        private final PrimitiveIterator.OfLong[] sources;
+        private final long[] heads;  // by source
+        private final int[] heap;    // source indices - heads[heap[0]] is the smallest
+        private int size = 0;
+
+        public LongMerger(List<? extends PrimitiveIterator.OfLong> sources) {
+            this.sources = sources.toArray(new PrimitiveIterator.OfLong[0]);
+            heads = new long[this.sources.length];
+            heap = new int[this.sources.length];
+            for (int i = 0; i < this.sources.length; i++) {
+                if (this.sources[i].hasNext()) {
+                    heads[i] = this.sources[i].nextLong();
+                    heap[size++] = i;
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(heap, heads, size, i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        @Override
+        public long nextLong() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            int source = heap[0];
+            long value = heads[source];
+            if (sources[source].hasNext()) {
+                heads[source] = sources[source].nextLong();
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(heap, heads, size, 0);
+            return value;
+        }
+    }
+
+    /**
+     * @return the first index in [from, to) with run[index] > bound, or to.
+     * Gallops (1, 2, 4... steps) and then binary searches the last step - cheap when the answer is close to from
+     */
+    static int gallop(int[] run, int from, int to, int bound) {
+        int lo = from;
+        int hi = from;
+        for (int step = 1; hi < to && run[hi] <= bound; step <<= 1) {
+            lo = hi + 1;
+            hi = (int) Math.min(to, (long) hi + step);
+        }
+        while (lo < hi) {  // run[lo - 1] <= bound and (hi == to or run[hi] > bound)
+            int mid = (lo + hi) >>> 1;
+            if (run[mid] <= bound) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    static int gallop(long[] run, int from, int to, long bound) {
+        int lo = from;
+        int hi = from;
+        for (int step = 1; hi < to && run[hi] <= bound; step <<= 1) {
+            lo = hi + 1;
+            hi = (int) Math.min(to, (long) hi + step);
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (run[mid] <= bound) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    static int totalLength(int[] lengths) {
+        long total = 0;
+        for (var length : lengths) {
+            total += length;
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException(String.format("Merged runs too large for an array: %d elements", total));
+        }
+        return (int) total;
+    }
+
+    /**
+     * Merges sorted int[] runs into one sorted array.
+     * The run with the smallest head is copied with System.arraycopy up to the smallest head of all the other runs -
+     * so where one run dominates a range its elements are copied in bulk, not compared one by one.
+     */
+    public static int[] merge(int[]... runs) {
+        var lengths = Arrays.stream(runs).mapToInt(run -> run.length).toArray();
+        var merged = new int[totalLength(lengths)];
+        mergeInto(runs, new int[runs.length], lengths, merged, 0);
+        return merged;
+    }
+
+    /**
+     * Merges the slices runs[i][from[i], to[i]) into merged, starting at index 'out'
+     */
+    static void mergeInto(int[][] runs, int[] from, int[] to, int[] merged, int out) {
+        var pos = from.clone();
+        var heads = new int[runs.length];
+        var heap = new int[runs.length];
+        int size = 0;
+        for (int i = 0; i < runs.length; i++) {
+            if (pos[i] < to[i]) {
+                heads[i] = runs[i][pos[i]];
+                heap[size++] = i;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heads, size, i);
+        }
+        while (size > 1) {
+            int top = heap[0];
+            // the smallest head of the other runs is one of the root's children
+            int second = size > 2 && heads[heap[2]] < heads[heap[1]] ? heap[2] : heap[1];
+            var run = runs[top];
+            int end = pos[top] + 1;
+            if (end < to[top] && run[end] <= heads[second]) {
+                end = gallop(run, end, to[top], heads[second]);
+                System.arraycopy(run, pos[top], merged, out, end - pos[top]);
+                out += end - pos[top];
+            } else {
+                merged[out++] = heads[top];  // interleaved runs - mostly one element at a time
+            }
+            pos[top] = end;
+            if (end == to[top]) {
+                heap[0] = heap[--size];
+            } else {
+                heads[top] = run[end];
+            }
+            siftDown(heap, heads, size, 0);
+        }
+        if (size == 1) {
+            int last = heap[0];
+            System.arraycopy(runs[last], pos[last], merged, out, to[last] - pos[last]);
+        }
+    }
+
+    // Parallel merge - the output is cut into equal ranges, and every run is cut where each range starts:
+    // the value at that rank of the output is found by a binary search over the values (counting the elements
+    // up to a value with a binary search in every run). Range j of all the runs holds exactly the values that
+    // belong in range j of the output - so the ranges merge independently, each into its own part of the output.
+    // Copies of the value a range starts at are shared out by position - so even a long run of one repeated key
+    // doesn't make one huge range.
+    static final int MIN_PARALLEL_RANGE = 1 << 16;  // smaller ranges aren't worth a task
+    static final int MAX_CHUNK = 1 << 28;           // the largest range parallelMergeChunks puts in an array
+
+    /**
+     * @return the first index in [0, run.length) with run[index] >= value, or run.length
+     */
+    static int lowerBound(int[] run, int value) {
+        int lo = 0;
+        int hi = run.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (run[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the first index in [0, run.length) with run[index] > value, or run.length
+     */
+    static int upperBound(int[] run, int value) {
+        return value == Integer.MAX_VALUE ? run.length : lowerBound(run, value + 1);
+    }
+
+    /**
+     * @return the value at index 'rank' of the merged runs - rank must be less than their total length
+     */
+    static int valueAtRank(int[][] runs, long rank) {
+        long lo = Integer.MIN_VALUE;
+        long hi = Integer.MAX_VALUE;
+        while (lo < hi) {
+            long mid = (lo + hi) >> 1;
+            long count = 0;  // elements <= mid
+            for (var run : runs) {
+                count += upperBound(run, (int) mid);
+            }
+            if (count > rank) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return (int) lo;
+    }
+
+    /**
+     * cuts[j][i] - where range j starts in run i. Range j ends where range j+1 starts, the last one at the end.
+     * Range j starts at index j * total / ranges of the output - so the ranges differ by one element at most.
+     */
+    static int[][] rangeCuts(int[][] runs, long total, int ranges) {
+        var cuts = new int[ranges + 1][runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            cuts[ranges][i] = runs[i].length;
+        }
+        var equal = new int[runs.length];
+        for (int j = 1; j < ranges; j++) {
+            long start = (long) j * total / ranges;
+            if (start == total) {
+                cuts[j] = cuts[ranges].clone();
+                continue;
+            }
+            int value = valueAtRank(runs, start);
+            long below = 0;
+            for (int i = 0; i < runs.length; i++) {
+                cuts[j][i] = lowerBound(runs[i], value);
+                equal[i] = upperBound(runs[i], value) - cuts[j][i];
+                below += cuts[j][i];
+            }
+            // copies of the value go to the range before - run by run - until range j starts at 'start'
+            long missing = start - below;
+            for (int i = 0; i < runs.length && missing > 0; i++) {
+                int take = (int) Math.min(missing, equal[i]);
+                cuts[j][i] += take;
+                missing -= take;
+            }
+        }
+        return cuts;
+    }
+
+    /**
+     * Merges sorted runs into merged (at least as long as all the runs together) using the pool's threads.
+     * One array holds less than 2^31 elements - to merge more see parallelMergeChunks.
+     */
+    public static void parallelMerge(int[][] runs, int[] merged, ForkJoinPool pool) {
+        long total = totalLength(Arrays.stream(runs).mapToInt(run -> run.length).toArray());
+        if (merged.length < total) {
+            throw new RuntimeException(String.format("Output has %d elements, expecting %d", merged.length, total));
+        }
+        // a few ranges per thread - so a thread that finishes early takes another range
+        int ranges = (int) Math.max(1, Math.min(4L * pool.getParallelism(), total / MIN_PARALLEL_RANGE));
+        if (ranges == 1) {
+            mergeInto(runs, new int[runs.length], Arrays.stream(runs).mapToInt(run -> run.length).toArray(),
+                    merged, 0);
+            return;
+        }
+        var cuts = rangeCuts(runs, total, ranges);
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+        int out = 0;
+        for (int j = 0; j < ranges; j++) {
+            var from = cuts[j];
+            var to = cuts[j + 1];
+            int start = out;
+            for (int i = 0; i < runs.length; i++) {
+                out += to[i] - from[i];
+            }
+            if (out > start) {
+                tasks.add(ForkJoinTask.adapt(() -> mergeInto(runs, from, to, merged, start)));
+            }
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    public static int[] parallelMerge(int[]... runs) {
+        var merged = new int[totalLength(Arrays.stream(runs).mapToInt(run -> run.length).toArray())];
+        parallelMerge(runs, merged, ForkJoinPool.commonPool());
+        return merged;
+    }
+
+    /**
+     * Merges sorted runs of any total length - billions of elements, more than one array holds.
+     * Every range is merged into an array of its own, so the output is chunks - the merged runs are
+     * chunks[0], then chunks[1]... Empty ranges are left out.
+     * @param maxChunk the most elements in a chunk
+     */
+    public static int[][] parallelMergeChunks(int[][] runs, int maxChunk, ForkJoinPool pool) {
+        long total = 0;
+        for (var run : runs) {
+            total += run.length;
+        }
+        long ranges = Math.max((total + maxChunk - 1) / maxChunk,
+                Math.min(4L * pool.getParallelism(), total / MIN_PARALLEL_RANGE));
+        if (ranges > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException(String.format("Too many chunks: %d elements, %d per chunk", total, maxChunk));
+        }
+        var cuts = rangeCuts(runs, total, (int) Math.max(1, ranges));
+        var chunks = new ArrayList<int[]>();
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+        for (int j = 0; j + 1 < cuts.length; j++) {
+            var from = cuts[j];
+            var to = cuts[j + 1];
+            var lengths = new int[runs.length];
+            for (int i = 0; i < runs.length; i++) {
+                lengths[i] = to[i] - from[i];
+            }
+            int length = totalLength(lengths);  // at most maxChunk
+            if (length > 0) {
+                var chunk = new int[length];
+                chunks.add(chunk);
+                tasks.add(ForkJoinTask.adapt(() -> mergeInto(runs, from, to, chunk, 0)));
+            }
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        return chunks.toArray(new int[0][]);
+    }
+
+    public static int[][] parallelMergeChunks(int[]... runs) {
+        return parallelMergeChunks(runs, MAX_CHUNK, ForkJoinPool.commonPool());
+    }
+
+    public static long[] merge(long[]... runs) {
+        var lengths = Arrays.stream(runs).mapToInt(run -> run.length).toArray();
+        var merged = new long[totalLength(lengths)];
+        mergeInto(runs, new int[runs.length], lengths, merged, 0);
+        return merged;
+    }
+
+    /**
+     * Merges the slices runs[i][from[i], to[i]) into merged, starting at index 'out' - as mergeInto for int runs
+     */
+    static void mergeInto(long[][] runs, int[] from, int[] to, long[] merged, int out) {
+        var pos = from.clone();
+        var heads = new long[runs.length];
+        var heap = new int[runs.length];
+        int size = 0;
+        for (int i = 0; i < runs.length; i++) {
+            if (pos[i] < to[i]) {
+                heads[i] = runs[i][pos[i]];
+                heap[size++] = i;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heads, size, i);
+        }
+        while (size > 1) {
+            int top = heap[0];
+            // the smallest head of the other runs is one of the root's children
+            int second = size > 2 && heads[heap[2]] < heads[heap[1]] ? heap[2] : heap[1];
+            var run = runs[top];
+            int end = pos[top] + 1;
+            if (end < to[top] && run[end] <= heads[second]) {
+                end = gallop(run, end, to[top], heads[second]);
+                System.arraycopy(run, pos[top], merged, out, end - pos[top]);
+                out += end - pos[top];
+            } else {
+                merged[out++] = heads[top];  // interleaved runs - mostly one element at a time
+            }
+            pos[top] = end;
+            if (end == to[top]) {
+                heap[0] = heap[--size];
+            } else {
+                heads[top] = run[end];
+            }
+            siftDown(heap, heads, size, 0);
+        }
+        if (size == 1) {
+            int last = heap[0];
+            System.arraycopy(runs[last], pos[last], merged, out, to[last] - pos[last]);
+        }
+    }
+
+    static void siftDown(int[] heap, int[] heads, int size, int i) {
+        int source = heap[i];
+        int value = heads[source];
+        for (int child = 2 * i + 1; child < size; child = 2 * i + 1) {
+            if (child + 1 < size && heads[heap[child + 1]] < heads[heap[child]]) {
+                child++;
+            }
+            if (value <= heads[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = source;
+    }
+
+    static void siftDown(int[] heap, long[] heads, int size, int i) {
+        int source = heap[i];
+        long value = heads[source];
+        for (int child = 2 * i + 1; child < size; child = 2 * i + 1) {
+            if (child + 1 < size && heads[heap[child + 1]] < heads[heap[child]]) {
+                child++;
+            }
+            if (value <= heads[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = source;
+    }
+
     public static long timeItNano(Runnable r) {
+        // A quick look only - for numbers to compare see MergeBenchmark (README)
         // Function to measure execution time of the above solutions
         // to use in the above main call like this (for example)
         //    String output = Main.timeIt(Main::capitalize_by_word, input);
@@ -217,6 +824,23 @@ public class MultiMerge {
         return iterators;
     }
 
+    public static int[] testRun(int minSize, int maxSize) {
+        var rand = new Random();
+        return rand.ints(rand.nextInt(maxSize - minSize) + minSize).sorted().toArray();
+    }
+
+    public static int[][] testRuns(int minSize, int maxSize, int n) {
+        var runs = new int[n][];
+        for (int i = 0; i < n; i++) {
+            runs[i] = testRun(minSize, maxSize);
+        }
+        return runs;
+    }
+
+    public static List<PrimitiveIterator.OfInt> intIterators(int[][] runs) {
+        return Arrays.stream(runs).map(run -> Arrays.stream(run).iterator()).toList();
+    }
+
     interface IteratorFactory {
         Iterator<Integer> create();
     }
@@ -241,6 +865,199 @@ public class MultiMerge {
         System.out.println("time msec average= " + Double.toString(nano_secs_sum / repeats / 1000000.0));
     }
 
+    interface IntMergerFactory {
+        PrimitiveIterator.OfInt create(int[][] runs);
+    }
+
+    /**
+     * Like timeMerger - but creating the merger is timed too, since merging arrays happens right there
+     */
+    public static void timeIntMerger(IntMergerFactory factory) {
+        int repeats = 50;
+        long nano_secs_sum = 0;
+        for (int i = 0; i < repeats; i++) {
+            var runs = testRuns(10000, 15000, 10);
+            long nano_secs = timeItNano(() -> {
+                var merger = factory.create(runs);
+                boolean first = true;
+                int prev = 0;
+                while (merger.hasNext()) {
+                    int item = merger.nextInt();
+                    if (!first && prev > item) {
+                        throw new RuntimeException(String.format("ERROR we should have %d <= %d", prev, item));
+                    }
+                    first = false;
+                    prev = item;
+                }
+            });
+            nano_secs_sum += nano_secs;
+        }
+        System.out.println("time msec average= " + Double.toString(nano_secs_sum / repeats / 1000000.0));
+    }
+
+    public static void testLoserTree() {
+        for (int k : new int[]{0, 1, 2, 3, 5, 8, 13}) {
+            var lists = new ArrayList<List<Integer>>();
+            var rand = new Random(k);
+            for (int i = 0; i < k; i++) {
+                lists.add(rand.ints(rand.nextInt(50), 0, 20).sorted().boxed().toList());  // with ties
+            }
+            var expected = lists.stream().flatMap(List::stream).sorted().toList();
+            var merged = new ArrayList<Integer>();
+            LoserTreeMerger.of(lists.stream().map(List::iterator).toList()).forEachRemaining(merged::add);
+            if (!merged.equals(expected)) {
+                throw new RuntimeException(String.format("ERROR loser tree with k=%d: %s", k, merged));
+            }
+        }
+        // a comparator by length - equal lengths come out in the order of their sources
+        var byLength = new LoserTreeMerger<>(List.of(
+                List.of("bb", "ccc").iterator(), List.of("a", "dd", "eee").iterator(), List.of("f", "gg").iterator()),
+                Comparator.comparingInt(String::length));
+        var merged = new ArrayList<String>();
+        byLength.forEachRemaining(merged::add);
+        if (!merged.equals(List.of("a", "f", "bb", "dd", "gg", "ccc", "eee"))) {
+            throw new RuntimeException("ERROR loser tree is not stable: " + merged);
+        }
+    }
+
+    public static void testMergeReduce() {
+        // oldest run first - null is a deletion
+        var oldest = List.of(Map.entry("a", 1), Map.entry("b", 2), Map.entry("d", 4));
+        var middle = List.of(Map.entry("b", 20), Map.entry("c", 30));
+        var newest = new ArrayList<Map.Entry<String, Integer>>();
+        newest.add(new AbstractMap.SimpleImmutableEntry<>("a", null));
+        newest.add(Map.entry("c", 300));
+        var runs = List.of(oldest, middle, newest);
+
+        var compacted = new ArrayList<Map.Entry<String, Integer>>();
+        new MergeReduceIterator<>(runs.stream().map(List::iterator).toList(), Comparator.<String>naturalOrder(),
+                MergeReduceIterator.newestWins(), Objects::isNull).forEachRemaining(compacted::add);
+        if (!compacted.equals(List.of(Map.entry("b", 20), Map.entry("c", 300), Map.entry("d", 4)))) {
+            throw new RuntimeException("ERROR newest-wins compaction: " + compacted);
+        }
+        // tombstones kept - e.g. when compacting runs that are not the oldest
+        compacted.clear();
+        new MergeReduceIterator<>(runs.stream().map(List::iterator).toList(), Comparator.<String>naturalOrder(),
+                MergeReduceIterator.newestWins(), null).forEachRemaining(compacted::add);
+        if (compacted.size() != 4 || compacted.get(0).getValue() != null) {
+            throw new RuntimeException("ERROR tombstone was not kept: " + compacted);
+        }
+        // sums - over endless runs, so it must be streaming
+        var evens = Stream.iterate(0, i -> i + 2).map(i -> Map.entry(i, 1)).iterator();
+        var threes = Stream.iterate(0, i -> i + 3).map(i -> Map.entry(i, 10)).iterator();
+        var sums = new MergeReduceIterator<>(List.of(evens, threes), Comparator.<Integer>naturalOrder(),
+                Integer::sum, null);
+        var firstSums = new ArrayList<Map.Entry<Integer, Integer>>();
+        for (int i = 0; i < 5; i++) {
+            firstSums.add(sums.next());
+        }
+        if (!firstSums.equals(List.of(Map.entry(0, 11), Map.entry(2, 1), Map.entry(3, 10), Map.entry(4, 1),
+                Map.entry(6, 11)))) {
+            throw new RuntimeException("ERROR sum reducer: " + firstSums);
+        }
+    }
+
+    public static void testPrimitiveMergers() {
+        var runs = new int[][]{{1, 4, 4, 9}, {}, {2, 3, 4, 100, 200, 300}, {-5}, {5, 6, 7, 8}};
+        var expected = Arrays.stream(runs).flatMapToInt(Arrays::stream).sorted().toArray();
+        if (!Arrays.equals(merge(runs), expected)) {
+            throw new RuntimeException("ERROR merge(int[]...) " + Arrays.toString(merge(runs)));
+        }
+        var merger = new IntMerger(intIterators(runs));
+        for (var value : expected) {
+            if (merger.nextInt() != value) {
+                throw new RuntimeException("ERROR IntMerger at " + value);
+            }
+        }
+        if (merger.hasNext()) {
+            throw new RuntimeException("ERROR IntMerger has extra elements");
+        }
+        var random = testRuns(100, 2000, 7);
+        if (!Arrays.equals(merge(random), Arrays.stream(random).flatMapToInt(Arrays::stream).sorted().toArray())) {
+            throw new RuntimeException("ERROR merge(int[]...) of random runs");
+        }
+        var longRuns = new long[][]{{Long.MIN_VALUE, 3L << 40}, {1, 2, Long.MAX_VALUE}, {}};
+        var longExpected = new long[]{Long.MIN_VALUE, 1, 2, 3L << 40, Long.MAX_VALUE};
+        if (!Arrays.equals(merge(longRuns), longExpected)) {
+            throw new RuntimeException("ERROR merge(long[]...) " + Arrays.toString(merge(longRuns)));
+        }
+        var longMerger = new LongMerger(Arrays.stream(longRuns).map(run -> Arrays.stream(run).iterator()).toList());
+        for (var value : longExpected) {
+            if (longMerger.nextLong() != value) {
+                throw new RuntimeException("ERROR LongMerger at " + value);
+            }
+        }
+    }
+
+    /**
+     * The chunks must be the merged runs - and even, none larger than maxChunk
+     */
+    static void checkChunks(int[][] runs, int[][] chunks, int maxChunk) {
+        var expected = merge(runs);
+        if (!Arrays.equals(Arrays.stream(chunks).flatMapToInt(Arrays::stream).toArray(), expected)) {
+            throw new RuntimeException("ERROR chunked parallel merge differs");
+        }
+        int min = Arrays.stream(chunks).mapToInt(chunk -> chunk.length).min().orElse(0);
+        int max = Arrays.stream(chunks).mapToInt(chunk -> chunk.length).max().orElse(0);
+        if (max > maxChunk || max - min > 1) {
+            throw new RuntimeException(String.format("ERROR uneven chunks - %d to %d elements, at most %d",
+                    min, max, maxChunk));
+        }
+    }
+
+    public static void testParallelMerge() {
+        try (var pool = new ForkJoinPool(4)) {
+            var rand = new Random(17);
+            for (int k : new int[]{1, 2, 7, 64}) {
+                var runs = new int[k][];
+                for (int i = 0; i < k; i++) {
+                    // narrow values - lots of duplicates, some of them on splitters
+                    runs[i] = rand.ints(rand.nextInt(400_000), -1000, 1000).sorted().toArray();
+                }
+                var merged = new int[Arrays.stream(runs).mapToInt(run -> run.length).sum()];
+                parallelMerge(runs, merged, pool);
+                if (!Arrays.equals(merged, merge(runs))) {
+                    throw new RuntimeException("ERROR parallel merge differs with k=" + k);
+                }
+            }
+            var runs = testRuns(300_000, 400_000, 5);
+            if (!Arrays.equals(parallelMerge(runs), merge(runs))) {
+                throw new RuntimeException("ERROR parallel merge differs");
+            }
+            // many short runs - as billions of elements in runs would be
+            runs = testRuns(500, 501, 600);
+            checkChunks(runs, parallelMergeChunks(runs, 50_000, pool), 50_000);
+            // one repeated key - split by position
+            runs = new int[100][];
+            for (int i = 0; i < runs.length; i++) {
+                runs[i] = new int[rand.nextInt(2000)];
+                Arrays.fill(runs[i], 7);
+            }
+            checkChunks(runs, parallelMergeChunks(runs, 10_000, pool), 10_000);
+            // chunked output - small chunks stand in for the arrays a few billion elements would need
+            for (int[][] chunkRuns : new int[][][]{runs, {rand.ints(100_000, -10, 10).sorted().toArray()}, {}}) {
+                var chunks = parallelMergeChunks(chunkRuns, 50_000, pool);
+                var expected = merge(chunkRuns);
+                if (!Arrays.equals(Arrays.stream(chunks).flatMapToInt(Arrays::stream).toArray(), expected)) {
+                    throw new RuntimeException("ERROR chunked parallel merge differs");
+                }
+                if (expected.length > 100_000 && chunks.length < expected.length / 50_000) {
+                    throw new RuntimeException("ERROR too few chunks: " + chunks.length);
+                }
+            }
+        }
+    }
+
+    public static void timingParallel() {
+        var runs = testRuns(1_000_000, 1_000_001, 16);
+        var merged = new int[16 * 1_000_000];
+        for (int round = 0; round < 3; round++) {  // the first rounds also warm up the JIT
+            System.out.printf("merge(int[]...) msec = %.1f%n", timeItNano(() -> merge(runs)) / 1e6);
+            System.out.printf("parallelMerge with %d threads msec = %.1f%n", ForkJoinPool.commonPool().getParallelism(),
+                    timeItNano(() -> parallelMerge(runs, merged, ForkJoinPool.commonPool())) / 1e6);
+        }
+    }
+
     public static void timing() {
         System.out.println("Timing Merger...");
         timeMerger(() -> new Merger<>(iteratorList(10000, 15000, 10)));
@@ -248,6 +1065,12 @@ public class MultiMerge {
         timeMerger(() -> new MergerChatGPT1<>(iteratorList(10000, 15000, 10)));
         System.out.println("Timing MergerByChatGPT2...");
         timeMerger(() -> new MergerByChatGPT2<>(iteratorList(10000, 15000, 10)));
+        System.out.println("Timing LoserTreeMerger...");
+        timeMerger(() -> LoserTreeMerger.of(iteratorList(10000, 15000, 10)));
+        System.out.println("Timing IntMerger...");
+        timeIntMerger(runs -> new IntMerger(intIterators(runs)));
+        System.out.println("Timing merge(int[]...)...");
+        timeIntMerger(runs -> Arrays.stream(merge(runs)).iterator());
     }
 
     public static void main(String[] args) {
@@ -258,7 +1081,12 @@ public class MultiMerge {
         while (merged.hasNext()) {
             System.out.println(merged.next());
         }
+        testLoserTree();
+        testMergeReduce();
+        testPrimitiveMergers();
+        testParallelMerge();
         timing();
+        timingParallel();
     }
 }
 
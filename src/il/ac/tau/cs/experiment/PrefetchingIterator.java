@@ -0,0 +1,270 @@
+package il.ac.tau.cs.experiment;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * A merge input for slow sources (files, remote cursors) - a virtual thread pulls the source in blocks
+ * ahead of the merge, into a bounded buffer of blocks. The merge only waits when a source's buffer is empty,
+ * and while it waits the other sources keep fetching - so one lagging source doesn't stall them all.
+ *    new MultiMerge.Merger<>(List.of(new PrefetchingIterator<>(cursor1, 1024, 4), ...))
+ * Close it if the merge stops early - that stops the fetching thread.
+ */
+public class PrefetchingIterator<T> implements Iterator<T>, AutoCloseable {
+    /**
+     * @param stalls, stallNanos how many times and for how long the consumer waited for a block
+     * @param averageOccupancy blocks waiting in the buffer when the consumer took one - near capacity means
+     *                         the source keeps ahead, near 0 means the consumer waits for it
+     * @param sourceNanos time the fetching thread spent in the source's hasNext()/next()
+     */
+    public record Metrics(long elements, long blocks, long stalls, long stallNanos, double averageOccupancy,
+                          int capacity, long sourceNanos) {}
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    // Passed after the last block
+    private static final Object[] END = new Object[0];
+
+    private final ArrayBlockingQueue<Object[]> blocks;
+    private final int capacity;
+    final Thread fetcher;
+    private volatile Throwable failure;
+    private volatile boolean closed = false;
+    private volatile long sourceNanos;
+
+    private Object[] current = new Object[0];
+    private int index = 0;
+    private boolean done = false;
+    private long elements = 0;
+    private long blocksTaken = 0;
+    private long stalls = 0;
+    private long stallNanos = 0;
+    private long occupancySum = 0;
+
+    /**
+     * @param blockSize elements per block
+     * @param capacity blocks fetched ahead - the buffer holds at most capacity * blockSize elements
+     */
+    public PrefetchingIterator(Iterator<? extends T> source, int blockSize, int capacity) {
+        if (blockSize < 1 || capacity < 1) {
+            throw new RuntimeException(String.format(
+                    "Block size and capacity must be positive, got %d and %d", blockSize, capacity));
+        }
+        this.capacity = capacity;
+        blocks = new ArrayBlockingQueue<>(capacity);
+        fetcher = Thread.ofVirtual().name("prefetch-" + threadCount.incrementAndGet()).start(() -> {
+            try {
+                fetch(source, blockSize);
+            } catch (InterruptedException e) {
+                return;  // closed
+            } catch (Throwable e) {
+                failure = e;
+            }
+            putEnd();
+        });
+    }
+
+    private void putEnd() {
+        try {
+            blocks.put(END);
+        } catch (InterruptedException e) {
+            // closed - nobody takes it anyway
+        }
+    }
+
+    private void fetch(Iterator<? extends T> source, int blockSize) throws InterruptedException {
+        for (;;) {
+            var block = new ArrayList<T>(blockSize);
+            long start = System.nanoTime();
+            while (block.size() < blockSize && source.hasNext()) {
+                block.add(source.next());
+            }
+            sourceNanos += System.nanoTime() - start;
+            if (!block.isEmpty()) {
+                blocks.put(block.toArray());
+            }
+            if (block.size() < blockSize) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            throw new IllegalStateException("The prefetching iterator is closed");
+        }
+        if (index < current.length) {
+            return true;
+        }
+        if (done) {
+            return false;
+        }
+        occupancySum += blocks.size();
+        var block = blocks.poll();
+        if (block == null) {
+            long start = System.nanoTime();
+            try {
+                block = blocks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for a block", e);
+            }
+            stalls++;
+            stallNanos += System.nanoTime() - start;
+        }
+        if (block == END) {
+            done = true;
+            if (failure != null) {
+                throw new RuntimeException("Prefetching from the source failed", failure);
+            }
+            return false;
+        }
+        blocksTaken++;
+        current = block;
+        index = 0;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        elements++;
+        var value = (T) current[index];
+        current[index++] = null;  // the block shouldn't keep elements the merge is done with
+        return value;
+    }
+
+    /**
+     * Metrics of the consumer side so far - call it from the consuming thread
+     */
+    public Metrics metrics() {
+        long takes = blocksTaken + (done ? 1 : 0);
+        return new Metrics(elements, blocksTaken, stalls, stallNanos,
+                takes == 0 ? 0 : (double) occupancySum / takes, capacity, sourceNanos);
+    }
+
+    /**
+     * Stops the fetching thread and drops the blocks fetched ahead - the iterator can't be used after it
+     */
+    @Override
+    public void close() {
+        closed = true;
+        fetcher.interrupt();
+        blocks.clear();
+    }
+
+    /**
+     * A source with latency - every 'every' elements it waits 'millis', like a cursor fetching its next page
+     */
+    static <T> Iterator<T> slowIterator(Iterator<T> iterator, int every, long millis) {
+        return new Iterator<>() {
+            private int count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (count++ % every == 0) {
+                    try {
+                        Thread.sleep(millis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                }
+                return iterator.next();
+            }
+        };
+    }
+
+    public static void testPrefetching() {
+        var lists = List.of(List.of(1, 4, 7, 10), List.of(2, 5, 8), List.<Integer>of(), List.of(3, 6, 9, 11, 12));
+        var sources = lists.stream().map(list -> new PrefetchingIterator<>(list.iterator(), 2, 1)).toList();
+        var merged = new ArrayList<Integer>();
+        new MultiMerge.Merger<>(new ArrayList<Iterator<Integer>>(sources)).forEachRemaining(merged::add);
+        if (!merged.equals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12))) {
+            throw new RuntimeException("ERROR prefetched merge: " + merged);
+        }
+        var metrics = sources.get(3).metrics();
+        if (metrics.elements() != 5 || metrics.blocks() != 3) {
+            throw new RuntimeException("ERROR unexpected metrics: " + metrics);
+        }
+        // a failing source - the merge sees the failure
+        var failing = new PrefetchingIterator<Integer>(new Iterator<>() {
+            public boolean hasNext() {
+                return true;
+            }
+
+            public Integer next() {
+                throw new IllegalStateException("cursor lost");
+            }
+        }, 4, 2);
+        try {
+            failing.hasNext();
+            throw new RuntimeException("ERROR source failure was not reported");
+        } catch (RuntimeException e) {
+            if (!(e.getCause() instanceof IllegalStateException)) {
+                throw e;
+            }
+        }
+        // closing an endless source stops its thread - and the iterator refuses to be used instead of blocking
+        var endless = new PrefetchingIterator<>(Stream.iterate(0, i -> i + 1).iterator(), 16, 2);
+        endless.next();
+        endless.close();
+        try {
+            endless.fetcher.join(Duration.ofSeconds(5));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (endless.fetcher.isAlive()) {
+            throw new RuntimeException("ERROR the fetching thread is still running after close()");
+        }
+        try {
+            endless.hasNext();
+            throw new RuntimeException("ERROR hasNext() after close() did not fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public static void timing() {
+        int k = 8;
+        var lists = new ArrayList<List<Integer>>();
+        for (int i = 0; i < k; i++) {
+            lists.add(Arrays.stream(MultiMerge.testRun(20_000, 20_001)).boxed().toList());
+        }
+        // 1 msec per 1000 elements per source
+        long direct = MultiMerge.timeItNano(() -> {
+            var merger = new MultiMerge.MergerChatGPT1<>(lists.stream()
+                    .map(list -> slowIterator(list.iterator(), 1000, 1)).toList());
+            merger.forEachRemaining(value -> {});
+        });
+        System.out.printf("%d slow sources, direct msec = %d%n", k, direct / 1_000_000);
+        var sources = lists.stream()
+                .map(list -> new PrefetchingIterator<>(slowIterator(list.iterator(), 1000, 1), 1000, 4)).toList();
+        long prefetched = MultiMerge.timeItNano(() -> {
+            var merger = new MultiMerge.MergerChatGPT1<>(new ArrayList<Iterator<Integer>>(sources));
+            merger.forEachRemaining(value -> {});
+        });
+        System.out.printf("%d slow sources, prefetched msec = %d%n", k, prefetched / 1_000_000);
+        System.out.println(sources.get(0).metrics());
+    }
+
+    public static void main(String[] args) {
+        testPrefetching();
+        timing();
+    }
+}
@@ -0,0 +1,219 @@
+package il.ac.tau.cs.experiment;
+
+import il.ac.tau.cs.experiment.ArithCompile.ExecutableCode;
+import il.ac.tau.cs.experiment.ArithCompile.FloatFunction;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static il.ac.tau.cs.experiment.ArithCompile.*;
+
+/**
+ * A formula that picks how to run itself - the way the JVM does with our own code.
+ * It starts in the tier that is cheapest to prepare (the stack VM on unoptimized code) and counts
+ * its invocations. When the count passes a threshold the next tier is prepared on a background
+ * thread - the callers keep using the current tier meanwhile, and switch when the new one is ready:
+ *    STACK_VM --(optimizeThreshold)--> OPTIMIZED_VM --(jitThreshold)--> JIT
+ * The parameters are bound to slots - args[i] is the value of paramIndex()[i] (see ParamBinder).
+ */
+public class TieredFormula {
+    public enum Tier { STACK_VM, OPTIMIZED_VM, JIT }
+
+    public static final long DEFAULT_OPTIMIZE_THRESHOLD = 1_000;
+    public static final long DEFAULT_JIT_THRESHOLD = 100_000;
+
+    // Shared by all formulas - one daemon thread is plenty, compiling takes micro to milliseconds
+    private static final Executor defaultCompiler = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "formula-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String sourceCode;
+    private final ExecutableCode code;
+    private final long optimizeThreshold;
+    private final long jitThreshold;
+    private final Executor compiler;
+
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicBoolean compiling = new AtomicBoolean();
+    private final AtomicLongArray compileNanos = new AtomicLongArray(Tier.values().length);
+    private ExecutableCode optimized;  // only touched by the compiler thread
+    private volatile long nextThreshold;
+    private volatile FloatFunction current;
+    private volatile Tier tier;
+    private volatile RuntimeException promotionFailure;
+
+    public TieredFormula(String sourceCode, long optimizeThreshold, long jitThreshold, Executor compiler) {
+        long start = System.nanoTime();
+        this.sourceCode = sourceCode;
+        this.code = compile(sourceCode);
+        this.optimizeThreshold = optimizeThreshold;
+        this.jitThreshold = jitThreshold;
+        this.compiler = compiler;
+        this.current = args -> run(code, args);
+        this.tier = Tier.STACK_VM;
+        this.nextThreshold = optimizeThreshold;
+        compileNanos.set(Tier.STACK_VM.ordinal(), System.nanoTime() - start);
+    }
+
+    public TieredFormula(String sourceCode) {
+        this(sourceCode, DEFAULT_OPTIMIZE_THRESHOLD, DEFAULT_JIT_THRESHOLD, defaultCompiler);
+    }
+
+    public float eval(float[] args) {
+        long count = invocations.incrementAndGet();
+        var function = current;
+        if (count >= nextThreshold && compiling.compareAndSet(false, true)) {
+            try {
+                compiler.execute(this::promote);
+            } catch (RejectedExecutionException e) {
+                // e.g. the executor was shut down - stay in the tier we have, and let a later call try again
+                promotionFailure = e;
+                compiling.set(false);
+            }
+        }
+        return function.apply(args);
+    }
+
+    /**
+     * Prepares the next tier - runs on the compiler thread
+     */
+    private void promote() {
+        try {
+            long start = System.nanoTime();
+            FloatFunction function;
+            Tier next;
+            if (tier == Tier.STACK_VM) {
+                optimized = ArithOptimizer.optimize(code);
+                var optimizedCode = optimized;
+                function = args -> run(optimizedCode, args);
+                next = Tier.OPTIMIZED_VM;
+            } else {
+                function = jit(optimized);
+                next = Tier.JIT;
+            }
+            compileNanos.set(next.ordinal(), System.nanoTime() - start);
+            current = function;
+            tier = next;
+            promotionFailure = null;
+            nextThreshold = next == Tier.JIT ? Long.MAX_VALUE : jitThreshold;
+        } catch (RuntimeException e) {
+            // e.g. a formula too large for one JVM method - stay in the tier we have
+            promotionFailure = e;
+            nextThreshold = Long.MAX_VALUE;
+        } finally {
+            compiling.set(false);
+        }
+    }
+
+    public String getSourceCode() {
+        return sourceCode;
+    }
+
+    public String[] paramIndex() {
+        return code.paramIndex();
+    }
+
+    public Tier getTier() {
+        return tier;
+    }
+
+    public long getInvocations() {
+        return invocations.get();
+    }
+
+    /**
+     * @return how long preparing the tier took - 0 if the formula has not reached it
+     */
+    public long getCompileNanos(Tier tier) {
+        return compileNanos.get(tier.ordinal());
+    }
+
+    /**
+     * @return why the last try to prepare the next tier failed - null if it didn't fail (the formula stays in getTier())
+     */
+    public RuntimeException getPromotionFailure() {
+        return promotionFailure;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TieredFormula[%s tier=%s invocations=%d compile usec=%d/%d/%d%s]",
+                sourceCode, getTier(), getInvocations(),
+                getCompileNanos(Tier.STACK_VM) / 1000, getCompileNanos(Tier.OPTIMIZED_VM) / 1000,
+                getCompileNanos(Tier.JIT) / 1000,
+                promotionFailure == null ? "" : " promotion failed: " + promotionFailure.getMessage());
+    }
+
+    public static void testTiers() throws InterruptedException {
+        var source = "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))";
+        var formula = new TieredFormula(source, 10, 100, defaultCompiler);
+        var args = new ParamBinder(formula.paramIndex()).bind(Map.of("x", 1.0F));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (formula.getTier() != Tier.JIT) {
+            check(formula.eval(args), 2.716667F);
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeException("ERROR - formula was not promoted: " + formula);
+            }
+            Thread.sleep(1);
+        }
+        check(formula.eval(args), 2.716667F);
+        if (formula.getCompileNanos(Tier.JIT) == 0 || formula.getInvocations() < 100
+                || formula.getPromotionFailure() != null) {
+            throw new RuntimeException("ERROR - unexpected counters: " + formula);
+        }
+
+        // too large for one JVM method - it stays optimized, and the failure is there to see
+        var sum = new StringBuilder("p0");
+        for (int i = 1; i < 20_000; i++) {
+            sum.append("+p").append(i);
+        }
+        var large = new TieredFormula(sum.toString(), 1, 2, Runnable::run);  // promotes on the calling thread
+        var largeArgs = new float[large.paramIndex().length];
+        Arrays.fill(largeArgs, 1.0F);
+        for (int i = 0; i < 3; i++) {
+            check(large.eval(largeArgs), 20_000.0F);
+        }
+        if (large.getTier() != Tier.OPTIMIZED_VM || large.getPromotionFailure() == null) {
+            throw new RuntimeException("ERROR - failed promotion was not recorded: " + large.getTier());
+        }
+
+        // the compiler rejects the promotion - it is recorded, and a later call can still promote
+        var executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        var rejecting = new boolean[]{true};
+        var rejected = new TieredFormula(source, 1, 2, task -> {
+            if (rejecting[0]) {
+                executor.execute(task);  // a shut down executor throws RejectedExecutionException
+            }
+            task.run();
+        });
+        check(rejected.eval(args), 2.716667F);
+        if (!(rejected.getPromotionFailure() instanceof RejectedExecutionException)) {
+            throw new RuntimeException("ERROR - rejected promotion was not recorded: " + rejected);
+        }
+        rejecting[0] = false;
+        check(rejected.eval(args), 2.716667F);
+        if (rejected.getTier() != Tier.OPTIMIZED_VM || rejected.getPromotionFailure() != null) {
+            throw new RuntimeException("ERROR - formula stuck after a rejected promotion: " + rejected);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        testTiers();
+        var formula = new TieredFormula(
+                "1 + x + (x*x/2) + (x*x*x/(2*3)) + (x*x*x*x/(2*3*4)) + (x*x*x*x*x/(2*3*4*5))");
+        var formulaArgs = new float[]{1.0F};
+        for (int round = 0; round < 3; round++) {
+            ArithInterpreter.timeIt(() -> formula.eval(formulaArgs));
+            System.out.println(formula);
+        }
+    }
+}
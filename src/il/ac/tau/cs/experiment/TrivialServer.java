@@ -3,82 +3,226 @@ package il.ac.tau.cs.experiment;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
+/**
+ * One thread serves all the clients - a Selector tells it which sockets are ready, so it sleeps while none is
+ * (no busy polling) and the work per round is for the ready sockets only, not for every open connection.
+ * Each connection's state (its buffers) is attached to its SelectionKey:
+ *    OP_READ  - until the request arrives
+ *    OP_WRITE - until the whole response is sent (a write may send only part of it), then the connection closes
+ */
 public class TrivialServer {
-    public static boolean handleOneClient(SocketChannel client) {
-        var inBuf = ByteBuffer.allocate(1024);
-        try {
-            client.read(inBuf);
-            if (inBuf.position() > 0) {
+    static final int BUFFER_SIZE = 1024;
+    static final long ACCEPT_BACKOFF_MILLIS = 10;  // after a failed accept - e.g. out of file descriptors
+
+    static boolean verbose = true;
+
+    static final class Connection {
+        final ByteBuffer inBuf = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer outBuf;
+    }
+
+    public static String response(String request) {
+        String html = "<html>\n<body>\n";
+        html += "<H1>Trivial server</H1>\n";
+        html += "<p>" + "client has sent" + "</p>\n";
+        html += "<p><pre>" + request + "</pre></p>\n";
+        html += "</body>\n</html>";
+        int contentLength = html.getBytes(StandardCharsets.UTF_8).length;
+        return String.format("HTTP/1.1 200 OK\r\n" +
+                "Content-Length: %d\r\n" +
+                "Connection: Closed\r\n" +
+                "Content-Type: text/html\r\n" +
+                "\r\n" + // empty line to finish HTTP header
+                "%s", contentLength, html);
+    }
+
+    private static void accept(Selector selector, ServerSocketChannel acceptSocket) throws IOException {
+        // accept everything pending - under a burst of connections that is cheaper than a select() per client
+        SocketChannel client;
+        while ((client = acceptSocket.accept()) != null) {
+            if (verbose) {
+                System.out.println("client added");
+            }
+            try {
+                client.configureBlocking(false);
+                client.register(selector, SelectionKey.OP_READ, new Connection());
+            } catch (IOException e) {
+                System.out.printf("ERROR registering client:\n  %s%n", e);
+                client.close();
+            }
+        }
+    }
+
+    private static void read(SelectionKey key) throws IOException {
+        var client = (SocketChannel) key.channel();
+        var connection = (Connection) key.attachment();
+        var inBuf = connection.inBuf;
+        if (client.read(inBuf) < 0) {
+            key.cancel();
+            client.close();
+            return;
+        }
+        if (inBuf.position() > 0) {
+            if (verbose) {
                 System.out.println("read from client.");
-                //String text = StandardCh
-                // arsets.UTF_8.decode(inBuf).toString();
-                int start = 0;
-                int end = inBuf.position() - 1;
-                String text = new String(inBuf.array(), start, end, StandardCharsets.UTF_8);
-                //System.out.println("read from client:" + text);
-                String html = "<html>\n<body>\n";
-                html += "<H1>Trivial server</H1>\n";
-                html += "<p>" + "client has sent" + "</p>\n";
-                html += "<p><pre>" + text + "</pre></p>\n";
-                html += "</body>\n</html>";
-                int contentLength = html.length();
-                String response = String.format("HTTP/1.1 200 OK\r\n"  +
-                        "Content-Length: %d\r\n" +
-                        "Connection: Closed\r\n" +
-                        "Content-Type: text/html\r\n" +
-                        "\r\n" + // empty line to finish HTTP header
-                        "%s", contentLength,  html);
+            }
+            String text = new String(inBuf.array(), 0, inBuf.position(), StandardCharsets.UTF_8);
+            String response = response(text);
+            if (verbose) {
                 System.out.println("response:" + response);
-                client.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8)));
-                client.close();  // end HTTP response
             }
-            return false;
+            connection.outBuf = ByteBuffer.wrap(response.getBytes(StandardCharsets.UTF_8));
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);  // usually the socket can take it all now - no need to wait for another select()
+        }
+    }
 
-        } catch (IOException e) {
-            System.out.println("Client closed." + e.getMessage());
-            return false;
+    private static void write(SelectionKey key) throws IOException {
+        var client = (SocketChannel) key.channel();
+        var outBuf = ((Connection) key.attachment()).outBuf;
+        client.write(outBuf);
+        if (!outBuf.hasRemaining()) {
+            key.cancel();
+            client.close();  // end HTTP response
+        }
+    }
+
+    /**
+     * Serves until the thread is interrupted
+     */
+    public static void runServer(ServerSocketChannel acceptSocket) throws IOException {
+        try (var selector = Selector.open()) {
+            acceptSocket.configureBlocking(false);
+            acceptSocket.register(selector, SelectionKey.OP_ACCEPT);
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();  // blocks until a socket is ready
+                var ready = selector.selectedKeys();
+                for (var key : ready) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept(selector, acceptSocket);
+                        } catch (IOException e) {
+                            // the listener stays registered - the connection waits in the backlog for another try
+                            System.out.printf("ERROR accept:\n  %s%n", e);
+                            try {
+                                Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+                            } catch (InterruptedException interrupted) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        if (verbose) {
+                            System.out.println("Client closed." + e.getMessage());
+                        }
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+                ready.clear();
+            }
+            for (var key : selector.keys()) {
+                if (key.channel() != acceptSocket) {
+                    key.channel().close();
+                }
+            }
         }
     }
 
     public static void runServer() {
-        ServerSocketChannel acceptSocket = null;
         var acceptPort = 8088;
-        var activeClients = new ArrayList<SocketChannel>();
-        try {
-            acceptSocket = ServerSocketChannel.open();
-            acceptSocket.configureBlocking(false);  // non-blocking to allow loop to handle other things
-            acceptSocket.socket().bind(new InetSocketAddress(acceptPort));
+        try (var acceptSocket = ServerSocketChannel.open()) {
+            try {
+                acceptSocket.bind(new InetSocketAddress(acceptPort));
+            } catch (IOException e) {
+                System.out.printf("ERROR accepting at port %d%n", acceptPort);
+                return;
+            }
+            runServer(acceptSocket);
         } catch (IOException e) {
-            System.out.printf("ERROR accepting at port %d%n", acceptPort);
-            return;
+            System.out.printf("ERROR server:\n  %s", e.toString());
         }
-        while (true) {
+    }
+
+    public static void testServer() throws Exception {
+        verbose = false;
+        try (var acceptSocket = ServerSocketChannel.open()) {
+            acceptSocket.bind(new InetSocketAddress("localhost", 0), 4096);
+            var server = Thread.ofPlatform().name("trivial-server").start(() -> {
+                try {
+                    runServer(acceptSocket);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
             try {
-                SocketChannel connectionSocket = acceptSocket.accept();
-                if (connectionSocket != null) {
-                    System.out.println("client added");
-                    activeClients.add(connectionSocket);
+                // many connections open at once - all connected before any sends its request
+                var address = acceptSocket.getLocalAddress();
+                var clients = new ArrayList<SocketChannel>();
+                for (int i = 0; i < 400; i++) {  // both ends are in this process - 2 files each
+                    clients.add(SocketChannel.open(address));
                 }
-            } catch (IOException e) {
-                System.out.printf("ERROR accept:\n  %s", e.toString());
-            }
-            for (int i = 0; i < activeClients.size(); i++) {
-                var client = activeClients.get(i);
-                var clientAlice = handleOneClient(client);
-                if (!clientAlice) {
-                    activeClients.remove(i);
-                    i--;
+                for (int i = clients.size() - 1; i >= 0; i--) {
+                    var request = "GET /" + i + " HTTP/1.1\r\n\r\n";
+                    clients.get(i).write(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+                }
+                for (int i = 0; i < clients.size(); i++) {
+                    var text = readAll(clients.get(i));
+                    if (!text.startsWith("HTTP/1.1 200 OK") || !text.contains("GET /" + i + " ")) {
+                        throw new RuntimeException("ERROR unexpected response: " + text);
+                    }
+                    // the body is exactly Content-Length bytes
+                    int length = Integer.parseInt(text.split("Content-Length: ")[1].split("\r\n")[0]);
+                    if (text.length() - text.indexOf("\r\n\r\n") - 4 != length) {
+                        throw new RuntimeException("ERROR wrong Content-Length: " + text);
+                    }
+                    clients.get(i).close();
                 }
+                // a client that leaves without a request doesn't bother the others
+                SocketChannel.open(address).close();
+                try (var client = SocketChannel.open(address)) {
+                    client.write(ByteBuffer.wrap("ping".getBytes(StandardCharsets.UTF_8)));
+                    if (!readAll(client).contains("<pre>ping</pre>")) {
+                        throw new RuntimeException("ERROR no response after a client left");
+                    }
+                }
+            } finally {
+                server.interrupt();
+                server.join();
+                verbose = true;
             }
         }
+    }
 
+    private static String readAll(SocketChannel client) throws IOException {
+        var buf = ByteBuffer.allocate(4 * BUFFER_SIZE);
+        while (client.read(buf) >= 0) {
+            if (!buf.hasRemaining()) {
+                throw new RuntimeException("ERROR response too long");
+            }
+        }
+        return new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
     }
-    public static void main(String[] argv) {
+
+    public static void main(String[] argv) throws Exception {
+        testServer();
         runServer();
     }
 }